@@ -1,36 +1,50 @@
 package banjo.builder;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
-import java.net.URISyntaxException;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
 
 import org.eclipse.core.filesystem.EFS;
 import org.eclipse.core.filesystem.IFileInfo;
+import org.eclipse.core.resources.IContainer;
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IMarker;
 import org.eclipse.core.resources.IProject;
 import org.eclipse.core.resources.IResource;
 import org.eclipse.core.resources.IResourceDelta;
 import org.eclipse.core.resources.IResourceDeltaVisitor;
-import org.eclipse.core.resources.IResourceVisitor;
+import org.eclipse.core.resources.IResourceProxy;
+import org.eclipse.core.resources.IResourceProxyVisitor;
+import org.eclipse.core.resources.IWorkspaceRoot;
 import org.eclipse.core.resources.IncrementalProjectBuilder;
+import org.eclipse.core.resources.ResourcesPlugin;
 import org.eclipse.core.runtime.CoreException;
-import org.eclipse.core.runtime.FileLocator;
 import org.eclipse.core.runtime.IProgressMonitor;
-import org.eclipse.core.runtime.Platform;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
 import org.eclipse.core.runtime.SubProgressMonitor;
-import org.osgi.framework.Bundle;
+import org.eclipse.core.runtime.jobs.ISchedulingRule;
+import org.eclipse.core.runtime.jobs.MultiRule;
+import org.eclipse.core.runtime.jobs.Job;
 
 import banjo.editor.Activator;
 import banjo.eval.Fail;
@@ -46,7 +60,6 @@ import banjo.expr.core.CoreExprFactory;
 import banjo.expr.core.CoreExprFromFile;
 import banjo.expr.core.Let;
 import banjo.expr.core.Projection;
-import banjo.expr.core.TestAndExampleGatherer;
 import banjo.expr.free.FreeExpression;
 import banjo.expr.free.FreeExpressionFactory;
 import banjo.expr.source.Operator;
@@ -54,12 +67,10 @@ import banjo.expr.source.SourceExpr;
 import banjo.expr.source.SourceExprFromFile;
 import banjo.expr.token.BadIdentifier;
 import banjo.expr.token.Identifier;
-import banjo.expr.util.FileRange;
 import banjo.expr.util.ParserReader;
 import banjo.expr.util.SourceFileRange;
 import banjo.value.Value;
 import fj.Ord;
-import fj.P;
 import fj.P2;
 import fj.data.List;
 import fj.data.Option;
@@ -68,15 +79,34 @@ import fj.data.TreeMap;
 
 public class BanjoBuilder extends IncrementalProjectBuilder {
     abstract class BanjoBuilderVisitor {
-        Set<IFile> banjoSourceFiles = Set.empty(Ord.stringOrd.contramap(IFile::toString));
+        /**
+         * Source files to check, keyed by full path so adding a file doesn't
+         * need any string building or ordered comparisons
+         */
+        LinkedHashMap<String, IFile> banjoSourceFiles = new LinkedHashMap<>();
         int numberOfSourceFiles = 0;
 
+        /**
+         * Paths of the source files whose contents actually changed; filled
+         * in while checking the sources.
+         */
+        Set<String> changedFiles = Set.empty(Ord.stringOrd);
+
+        /**
+         * Paths of the source files checked, by project key; filled in while
+         * checking the sources.
+         */
+        HashMap<String, ArrayList<String>> filesByProject = new HashMap<>();
+
         void addSource(IResource resource) {
             // Update our list of project ASTs to analyze
-            if(isBanjoSource(resource)) {
-                banjoSourceFiles = banjoSourceFiles.insert((IFile) resource);
+            if(isBanjoSource(resource))
+                addSourceFile((IFile) resource);
+        }
+
+        void addSourceFile(IFile file) {
+            if(banjoSourceFiles.putIfAbsent(file.getFullPath().toString(), file) == null)
                 numberOfSourceFiles++;
-            }
         }
 
         abstract public void collectSources() throws CoreException;
@@ -98,6 +128,8 @@ public class BanjoBuilder extends IncrementalProjectBuilder {
 		@Override
 		public boolean visit(IResourceDelta delta) throws CoreException {
 			final IResource resource = delta.getResource();
+            if(resource.getType() == IResource.FOLDER)
+                return !isSkippedFolder(resource.getName(), resource.isDerived(), resource.isHidden(), resource.isTeamPrivateMember());
             if((delta.getKind() & (IResourceDelta.ADDED | IResourceDelta.REMOVED | IResourceDelta.CHANGED)) != 0)
                 addSource(resource);
 			//return true to continue visiting children.
@@ -105,7 +137,11 @@ public class BanjoBuilder extends IncrementalProjectBuilder {
 		}
 	}
 
-    class BanjoBuilderProjectVisitor extends BanjoBuilderVisitor implements IResourceVisitor {
+    /**
+     * Finds all the source files in a project.  Uses resource proxies so no
+     * resource handles are made for files that aren't Banjo sources.
+     */
+    class BanjoBuilderProjectVisitor extends BanjoBuilderVisitor implements IResourceProxyVisitor {
         private IProject project;
 
         public BanjoBuilderProjectVisitor(IProject project) {
@@ -113,44 +149,200 @@ public class BanjoBuilder extends IncrementalProjectBuilder {
         }
 
         @Override
-		public boolean visit(IResource resource) {
-            addSource(resource);
-			//return true to continue visiting children.
-			return true;
-		}
+        public boolean visit(IResourceProxy proxy) {
+            switch(proxy.getType()) {
+            case IResource.FOLDER:
+                return !isSkippedFolder(proxy.getName(), proxy.isDerived(), proxy.isHidden(), proxy.isTeamPrivateMember());
+            case IResource.FILE:
+                if(isBanjoSourceName(proxy.getName()))
+                    addSourceFile((IFile) proxy.requestResource());
+                return false;
+            default:
+                //return true to continue visiting children.
+                return true;
+            }
+        }
 
         @Override
         public void collectSources() throws CoreException {
-            project.accept(this);
+            project.accept(this, IResource.NONE);
         }
 	}
 
 	public static final String BUILDER_ID = "banjo.editor.banjoBuilder";
-	private static final String MARKER_TYPE = IMarker.PROBLEM;
-    public static ExecutorService executor = Executors.newCachedThreadPool();
+	private static final String MARKER_TYPE = Activator.PLUGIN_ID + ".banjoProblem";
 
-    private static void addMarker(SourceFileRange sfr, String message, int severity) {
-        // Only try to add markers if the source file came from eclipse
-        if(!(sfr.sourceFile instanceof EclipseWorkspacePath))
-            return;
+    /**
+     * Number of test marker changes to collect before writing them
+     */
+    private static final int TEST_MARKER_BATCH_SIZE = 50;
 
-        IFile file = ((EclipseWorkspacePath) sfr.sourceFile).getFile();
+    /**
+     * Longest time to hold on to test marker changes before writing them
+     */
+    private static final long TEST_MARKER_BATCH_MILLIS = 1000;
+    /**
+     * How long a test may run before it is given up on; can be set using
+     * the banjo.testDeadline system property.  Tests run in a background job
+     * rather than holding up the build, so they get much longer than the
+     * checks done during a build.
+     */
+    public static final long TEST_DEADLINE_MILLIS = Long.getLong("banjo.testDeadline", 30000);
 
-        // Only try to add a marker to a file that still exists
-        if(!file.exists())
-            return;
+    /**
+     * How long an abandoned evaluation may keep running before its worker
+     * thread is replaced
+     */
+    public static final long EVALUATION_GRACE_MILLIS = Long.getLong("banjo.evaluationGracePeriod", 1000);
 
-        FileRange range = sfr.getFileRange();
-		try {
-			final IMarker marker = file.createMarker(MARKER_TYPE);
-			marker.setAttribute(IMarker.MESSAGE, message);
-			marker.setAttribute(IMarker.SEVERITY, severity);
-			marker.setAttribute(IMarker.LINE_NUMBER, range.getStartLine());
-			marker.setAttribute(IMarker.CHAR_START, range.getStartOffset());
-			marker.setAttribute(IMarker.CHAR_END, range.getEndOffset());
-		} catch (final CoreException e) {
-			Activator.log(e.getStatus());
-		}
+    /**
+     * How long to spend gathering the desugar problems of a single file
+     * before giving up on it; can be set using the banjo.desugarDeadline
+     * system property
+     */
+    public static final long DESUGAR_DEADLINE_MILLIS = Long.getLong("banjo.desugarDeadline", 1000);
+
+    /**
+     * Threads for the checks done during a build
+     */
+    public static final EvaluationScheduler evaluator = new EvaluationScheduler("Banjo evaluation",
+        Integer.getInteger("banjo.evaluationThreads", Runtime.getRuntime().availableProcessors()),
+        EVALUATION_GRACE_MILLIS);
+
+    /**
+     * Threads for running tests and explaining their failures, kept apart
+     * from the build's checks so stuck tests can't hold those up
+     */
+    public static final EvaluationScheduler testEvaluator = new EvaluationScheduler("Banjo test evaluation",
+        Integer.getInteger("banjo.testEvaluationThreads", Runtime.getRuntime().availableProcessors()),
+        EVALUATION_GRACE_MILLIS);
+
+    /**
+     * How many tests to run at the same time; can be set using the
+     * banjo.testParallelism system property
+     */
+    public static final int TEST_PARALLELISM = Integer.getInteger("banjo.testParallelism", Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Most CPU time and memory a single test may use before it is given up
+     * on; can be set in milliseconds and megabytes using the
+     * banjo.testCpuBudget and banjo.testMemoryBudget system properties.  Zero
+     * means no limit.  A test in a worker JVM is stopped by killing the
+     * worker; one running inside eclipse can only be abandoned, and may keep
+     * running.
+     * The CPU budget defaults to a third of TEST_DEADLINE_MILLIS; a budget
+     * longer than the deadline would never be reached.
+     */
+    public static final EvaluationScheduler.Budget TEST_BUDGET = new EvaluationScheduler.Budget(
+        TimeUnit.MILLISECONDS.toNanos(Long.getLong("banjo.testCpuBudget", TEST_DEADLINE_MILLIS / 3)),
+        Long.getLong("banjo.testMemoryBudget", 512) * 1024 * 1024);
+
+    /**
+     * Whether the tests of a project share the environments of the
+     * definitions around them during a test run (see SharedEvaluationMemo);
+     * off unless the banjo.sharedEvaluationMemo system property is true.
+     * Only applies to tests run inside eclipse.
+     */
+    public static final boolean SHARED_EVALUATION_MEMO = Boolean.getBoolean("banjo.sharedEvaluationMemo");
+
+    /**
+     * Most scopes to keep in a test run's shared memo; can be set using the
+     * banjo.sharedEvaluationMemoSize system property
+     */
+    public static final int SHARED_EVALUATION_MEMO_SIZE = Integer.getInteger("banjo.sharedEvaluationMemoSize", 1000);
+
+    /**
+     * Number of separate JVMs to run tests in; set using the banjo.testWorkers
+     * system property.  Defaults to half the processors, so a test that goes
+     * over its budget can be stopped.  Zero runs tests inside eclipse until
+     * testEvaluator is saturated with stuck tests, after which they run in a
+     * single worker JVM.
+     */
+    public static final int TEST_WORKERS = Integer.getInteger("banjo.testWorkers", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+    /**
+     * Maximum heap size for each test worker JVM; set using the
+     * banjo.testWorkerMaxHeap system property
+     */
+    public static final String TEST_WORKER_MAX_HEAP = System.getProperty("banjo.testWorkerMaxHeap", "512m");
+
+    private static TestWorkerPool testWorkers = null;
+
+    /**
+     * How long to wait after an auto-build for more changes before loading
+     * projects and running tests; can be set using the
+     * banjo.buildQuietPeriod system property
+     */
+    public static final long BUILD_QUIET_PERIOD_MILLIS = Long.getLong("banjo.buildQuietPeriod", 500);
+
+    /**
+     * Threads that dispatch tests to the evaluator
+     */
+    private static final ExecutorService testPool = Executors.newFixedThreadPool(TEST_PARALLELISM, EvaluationScheduler.daemonThreads("Banjo test runner"));
+
+    /**
+     * Pool used to check source files for syntax problems in parallel.
+     */
+    private static final ForkJoinPool syntaxCheckPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Maximum number of files to remember parse results for
+     */
+    public static final int PARSE_CACHE_SIZE = 4000;
+
+    private final ParseCache parseCache = new ParseCache(PARSE_CACHE_SIZE);
+
+    /**
+     * Root of each project AST loaded, by project key
+     */
+    private final Map<String, Path> projectRoots = Collections.synchronizedMap(new HashMap<>());
+
+    /**
+     * Kind of build in progress
+     */
+    private int buildKind = FULL_BUILD;
+
+    /**
+     * Whether markers left by older versions of the plugin have been removed
+     * from this project yet
+     */
+    private boolean legacyMarkersDeleted = false;
+
+    /**
+     * Parse results saved across sessions; loaded on first use
+     */
+    private SourceFileSummaries summaries = null;
+
+    /**
+     * Test durations and failures saved across sessions; loaded on first use
+     */
+    private TestHistory testHistory = null;
+
+    /**
+     * Project ASTs loaded by previous builds, shared by all Banjo projects
+     */
+    private static final ProjectAstCache projectAstCache = new ProjectAstCache();
+
+    /**
+     * Results of running tests in earlier builds and sessions; loaded on
+     * first use
+     */
+    private TestResults testResults = null;
+
+    /**
+     * Standard library generation the test results were calculated with
+     */
+    private long testedLibraryGeneration = -1;
+
+    /**
+     * Works out why tests failed after the build has marked them
+     */
+    private final FailureExplainer explainer = new FailureExplainer(MARKER_TYPE, ResourcesPlugin.getWorkspace());
+
+    private static void addMarker(SourceFileRange sfr, String message, int severity) {
+        Option<ProblemMarker> marker = ProblemMarker.forRange(sfr, message, severity);
+        if(marker.isSome())
+            marker.some().create(MARKER_TYPE);
 	}
 
 	public static int calculateLineNumber(IFile file, final int sourceOffset)
@@ -166,6 +358,23 @@ public class BanjoBuilder extends IncrementalProjectBuilder {
 		}
 	}
 
+    /**
+     * Lock only this project, and the standard library if it's in the
+     * workspace, rather than the whole workspace.  The builder doesn't
+     * change any resources apart from markers, so this lets Banjo projects
+     * build at the same time as each other.
+     */
+    @Override
+    public ISchedulingRule getRule(int kind, @SuppressWarnings("rawtypes") Map args) {
+        ISchedulingRule rule = getProject();
+        IWorkspaceRoot root = getProject().getWorkspace().getRoot();
+        for(Path libraryPath : StandardLibrary.searchPath()) {
+            for(IContainer container : root.findContainersForLocationURI(libraryPath.toUri()))
+                rule = MultiRule.combine(rule, container);
+        }
+        return rule;
+    }
+
 	/*
 	 * (non-Javadoc)
 	 *
@@ -175,6 +384,9 @@ public class BanjoBuilder extends IncrementalProjectBuilder {
 	@Override
 	protected IProject[] build(int kind, @SuppressWarnings("rawtypes") Map args, IProgressMonitor monitor)
 			throws CoreException {
+        buildKind = kind;
+        if(!legacyMarkersDeleted)
+            deleteLegacyMarkers();
 		if (kind == FULL_BUILD) {
 			fullBuild(monitor);
 		} else {
@@ -193,122 +405,335 @@ public class BanjoBuilder extends IncrementalProjectBuilder {
 		// delete markers set and files created
         monitor.beginTask("Remove markers", 1000);
         try {
+            scheduleTests(Option.none(), 0);
+            parseCache.clear();
+            projectAstCache.clear();
+            testResults().clear();
+            saveTestResults();
+            explainer.clear();
+            explainer.cancel();
+            summaries().clear();
+            saveSummaries();
+            testHistory().clear();
+            saveTestHistory();
             getProject().deleteMarkers(MARKER_TYPE, true, IResource.DEPTH_INFINITE);
+            deleteLegacyMarkers();
             monitor.worked(1000);
         } finally {
             monitor.done();
         }
 	}
 
-    Option<CoreExpr> buildFile(IFile file) {
-        EclipseWorkspaceFileSystem fs = new EclipseWorkspaceFileSystem(new EclipseWorkspaceFileSystemProvider(), this.getProject().getWorkspace(), null);
+    /**
+     * Older versions of the plugin used plain problem markers rather than
+     * our own marker type, so nothing else would remove them.  Delete any
+     * that are on Banjo source files, leaving other tools' markers alone.
+     */
+    void deleteLegacyMarkers() throws CoreException {
+        ArrayList<IMarker> legacy = new ArrayList<>();
+        for(IMarker marker : getProject().findMarkers(IMarker.PROBLEM, false, IResource.DEPTH_INFINITE)) {
+            if(isBanjoSource(marker.getResource()))
+                legacy.add(marker);
+        }
+        if(!legacy.isEmpty())
+            getProject().getWorkspace().deleteMarkers(legacy.toArray(new IMarker[legacy.size()]));
+        legacyMarkersDeleted = true;
+    }
+
+    /**
+     * Check a single file for parse and desugar problems.  This doesn't touch
+     * the workspace so it is safe to run on any thread; the resulting markers
+     * are written later by the build thread, which also remembers the results
+     * for later builds (see publishCheck).
+     */
+    SourceFileCheck checkFile(EclipseWorkspaceFileSystem fs, IFile file) {
         final Path filePath = fs.getPath(file);
+        Option<Path> projectRoot = CoreExprFactory.projectRootForPath(filePath);
 
         // If the file exists, we'll show error markers for any parse errors
         // If the file doesn't exist, this was called in response to a deletion,
         // so we still want to "build" the project the file was part of.
-        if(file.exists()) {
-            deleteMarkers(file);
-            IFileInfo fileInfo;
-            try {
-                fileInfo = EFS.getStore(file.getLocationURI()).fetchInfo();
-            } catch(final CoreException e) {
-                Activator.log(e.getStatus());
-                return Option.none();
-            }
-            if(fileInfo.getLength() > Integer.MAX_VALUE) {
-                // TODO Report error
-                Activator.log("File too large to parse; files must be less than 2GB.");
-                return Option.none();
-            }
+        if(!file.exists())
+            return new SourceFileCheck(file, List.nil(), projectRoot, true, true);
 
-            // Check if the file parses first, if it doesn't even parse we can
-            // skip the later steps
-            List<BadExpr> parseProblems = SourceExprFromFile.forPath(filePath).getProblems();
-            if(addMarkersForProblems(parseProblems))
-                return Option.none();
-            if(addDesugarProblemMarkers(CoreExprFromFile.forPath(filePath)))
-                return Option.none();
+        IFileInfo fileInfo;
+        try {
+            fileInfo = EFS.getStore(file.getLocationURI()).fetchInfo();
+        } catch(final CoreException e) {
+            Activator.log(e.getStatus());
+            return new SourceFileCheck(file, List.nil(), projectRoot, false, true);
+        }
+        if(fileInfo.getLength() > Integer.MAX_VALUE) {
+            // TODO Report error
+            Activator.log("File too large to parse; files must be less than 2GB.");
+            return new SourceFileCheck(file, List.nil(), projectRoot, false, true);
         }
 
-        // Return the bigger AST this file is part of - it'll be analyzed
-        // further in the main build process
-        Option<Path> projectRoot = CoreExprFactory.projectRootForPath(filePath);
-        List<Path> langBundlePath = langBundleSearchPath();
-        List<Path> paths = langBundlePath.append(projectRoot.toList());
-        CoreExpr projectAst = CoreExprFactory.INSTANCE.loadFromDirectories(paths);
-        return Option.some(projectAst);
-	}
+        // Unchanged files can replay the problems found last time
+        Option<SourceFileSummaries.Summary> cached;
+        try {
+            cached = cachedSummary(file);
+        } catch(final CoreException e) {
+            Activator.log(e.getStatus());
+            cached = Option.none();
+        } catch(final IOException e) {
+            Activator.log("Failed to read " + file.getFullPath(), e);
+            cached = Option.none();
+        }
+        if(cached.isSome())
+            return check(file, cached.some(), projectRoot, false, Option.none(), Option.none());
+        return parseFile(file, filePath, projectRoot);
+    }
 
-    public List<Path> langBundleSearchPath() {
+    static SourceFileCheck check(IFile file, SourceFileSummaries.Summary summary, Option<Path> projectRoot, boolean changed,
+        Option<ParseCache.Entry> cacheEntry, Option<SourceFileSummaries.Summary> toSave) {
+        // Check if the file parses first, if it doesn't even parse we can
+        // skip the later steps
+        if(summary.parseMarkers.isNotEmpty())
+            return new SourceFileCheck(file, summary.parseMarkers, projectRoot, false, changed, cacheEntry, toSave);
+        // A warning that the check timed out doesn't stop the tests running
+        boolean desugared = summary.desugarMarkers.forall(m -> m.severity != IMarker.SEVERITY_ERROR);
+        return new SourceFileCheck(file, summary.desugarMarkers, projectRoot, desugared, changed, cacheEntry, toSave);
+    }
+
+    /**
+     * Remember the results of checking a changed file, once the build has
+     * applied them.  This only happens on the build thread: if the build is
+     * cancelled before it gets to a check, nothing is remembered and the next
+     * build checks the file again and treats it as changed.
+     */
+    void publishCheck(SourceFileCheck check) {
+        if(!check.changed)
+            return;
+        if(check.cacheEntry.isSome())
+            parseCache.put(check.file, check.cacheEntry.some());
+        else
+            parseCache.remove(check.file);
+        if(check.summary.isSome())
+            summaries().put(check.file, check.summary.some());
+        else
+            summaries().remove(check.file);
+    }
+
+    /**
+     * Find the results of checking the file during an earlier build, if the
+     * file hasn't changed since.  Results still in memory are used first,
+     * then the ones saved by an earlier session.
+     */
+    Option<SourceFileSummaries.Summary> cachedSummary(IFile file) throws CoreException, IOException {
+        Option<ParseCache.Entry> entry = parseCache.get(file);
+        if(entry.isSome())
+            return Option.some(summarize(entry.some()));
+        return summaries().get(file);
+    }
+
+    static SourceFileSummaries.Summary summarize(ParseCache.Entry entry) {
+        return new SourceFileSummaries.Summary(entry.modificationStamp, entry.contentHash,
+            markersForProblems(entry.parseProblems), markersForProblems(entry.desugarProblems), entry.uses);
+    }
+
+    /**
+     * Parse and desugar a file.  The results to add to the parse cache and
+     * saved summaries are returned with the check.
+     */
+    SourceFileCheck parseFile(IFile file, Path filePath, Option<Path> projectRoot) {
+        // Take the stamp and hash before reading the source so that a
+        // concurrent edit makes the entry stale rather than wrong
+        long modificationStamp = file.getModificationStamp();
+        Option<String> contentHash;
+        Set<String> uses;
         try {
-            Bundle langBundle = Platform.getBundle("banjo.banjo-lang");
-            if(langBundle == null)
-                return List.nil();
-            return List.single(Paths.get(FileLocator.resolve(langBundle.getResource("/")).toURI()));
-        } catch(URISyntaxException e) {
-            return List.nil();
-        } catch(IOException e) {
-            return List.nil();
+            byte[] contents = ParseCache.readContents(file);
+            contentHash = Option.some(ParseCache.contentHash(contents));
+            uses = DependencyGraph.identifiersIn(new String(contents, file.getCharset()));
+        } catch(final CoreException e) {
+            Activator.log(e.getStatus());
+            contentHash = Option.none();
+            uses = Set.empty(Ord.stringOrd);
+        } catch(final IOException e) {
+            Activator.log("Failed to read " + file.getFullPath(), e);
+            contentHash = Option.none();
+            uses = Set.empty(Ord.stringOrd);
+        }
+
+        SourceExpr sourceExpr = SourceExprFromFile.forPath(filePath);
+        List<BadExpr> parseProblems = sourceExpr.getProblems();
+        Option<List<BadExpr>> desugarProblems = Option.some(List.nil());
+        if(markersForProblems(parseProblems).isEmpty()) {
+            CoreExpr ast = CoreExprFromFile.forPath(filePath);
+            desugarProblems = tryCallAsync(() -> CoreErrorGatherer.problems(ast), DESUGAR_DEADLINE_MILLIS);
+        }
+
+        ParseCache.Entry entry = new ParseCache.Entry(modificationStamp, contentHash.orSome(""), parseProblems, desugarProblems.orSome(List.nil()), uses);
+        SourceFileSummaries.Summary summary = summarize(entry);
+        boolean timedOut = desugarProblems.isNone() && !isInterrupted();
+        if(timedOut) {
+            // Only this file's problems are lost; say so rather than
+            // showing it as clean
+            ProblemMarker warning = new ProblemMarker(file,
+                "Gave up looking for problems in this file after " + DESUGAR_DEADLINE_MILLIS + "ms; it will be checked again when it changes",
+                IMarker.SEVERITY_WARNING, 1, 0, 0);
+            summary = new SourceFileSummaries.Summary(summary.modificationStamp, summary.contentHash, summary.parseMarkers, List.single(warning), uses);
+        }
+
+        // A check that timed out is remembered like any other result until
+        // the file changes, so the file isn't treated as changed in every
+        // build; one that was interrupted isn't remembered at all
+        Option<ParseCache.Entry> cacheEntry = contentHash.isSome() && desugarProblems.isSome() ? Option.some(entry) : Option.none();
+        Option<SourceFileSummaries.Summary> toSave = contentHash.isSome() && (desugarProblems.isSome() || timedOut) ? Option.some(summary) : Option.none();
+        return check(file, summary, projectRoot, true, cacheEntry, toSave);
+    }
+
+    /**
+     * Get the saved summaries for this project, loading them from the plugin
+     * state area the first time.
+     */
+    synchronized SourceFileSummaries summaries() {
+        if(summaries == null)
+            summaries = SourceFileSummaries.load(summariesFile(), getProject().getWorkspace().getRoot());
+        return summaries;
+    }
+
+    File summariesFile() {
+        return Activator.getDefault().getStateLocation().append(getProject().getName() + ".summaries").toFile();
+    }
+
+    void saveSummaries() {
+        try {
+            summaries().save(summariesFile());
+        } catch(final IOException e) {
+            Activator.log("Failed to save build state for " + getProject().getName(), e);
         }
     }
 
+    /**
+     * Get the saved test durations for this project, loading them from the
+     * plugin state area the first time.
+     */
+    synchronized TestHistory testHistory() {
+        if(testHistory == null)
+            testHistory = TestHistory.load(testHistoryFile());
+        return testHistory;
+    }
+
+    /**
+     * Get the test results for this project, loading the ones saved by an
+     * earlier session the first time.
+     */
+    synchronized TestResults testResults() {
+        if(testResults == null)
+            testResults = TestResults.load(testResultsFile());
+        return testResults;
+    }
+
+    File testResultsFile() {
+        return Activator.getDefault().getStateLocation().append(getProject().getName() + ".results").toFile();
+    }
+
+    void saveTestResults() {
+        try {
+            testResults().save(testResultsFile());
+        } catch(final IOException e) {
+            Activator.log("Failed to save test results for " + getProject().getName(), e);
+        }
+    }
+
+    File testHistoryFile() {
+        return Activator.getDefault().getStateLocation().append(getProject().getName() + ".tests").toFile();
+    }
+
+    void saveTestHistory() {
+        try {
+            testHistory().save(testHistoryFile());
+        } catch(final IOException e) {
+            Activator.log("Failed to save test history for " + getProject().getName(), e);
+        }
+    }
+
+    /**
+     * Get the bigger AST a file is part of - it'll be analyzed further in the
+     * main build process.  Project ASTs are only loaded again if they were
+     * invalidated since the last time they were loaded.
+     */
+    CoreExpr projectAst(Option<Path> projectRoot) {
+        // Files outside of any project only see the standard library
+        if(projectRoot.isNone())
+            return StandardLibrary.ast();
+
+        // The project ASTs include the library, so they are out of date if
+        // the library changed
+        long libraryGeneration = StandardLibrary.generation();
+        String key = ProjectAstCache.key(projectRoot);
+        long version = projectAstCache.version(key);
+        Option<CoreExpr> cached = projectAstCache.get(key, libraryGeneration);
+        if(cached.isSome())
+            return cached.some();
+        // If a build invalidated the project while we were loading it, the
+        // AST may be from before the change; it isn't cached, and the build
+        // has cancelled the test run that asked for it
+        CoreExpr projectAst = loadProjectAst(projectRoot);
+        projectAstCache.put(key, projectAst, libraryGeneration, version);
+        return projectAst;
+    }
+
+    CoreExpr loadProjectAst(Option<Path> projectRoot) {
+        if(projectRoot.isNone())
+            return StandardLibrary.ast();
+        return StandardLibrary.projectAst(projectRoot.some());
+    }
+
+    public List<Path> langBundleSearchPath() {
+        return StandardLibrary.searchPath();
+    }
+
     public boolean isBanjoSource(IResource resource) {
-        return resource instanceof IFile && resource.getName().endsWith(".banjo") && !resource.getName().startsWith(".");
+        return resource instanceof IFile && isBanjoSourceName(resource.getName());
     }
 
-    public boolean addDesugarProblemMarkers(CoreExpr projectAst) {
-        List<BadExpr> problems = getDesugarProblems(projectAst);
-        return addMarkersForProblems(problems);
+    public static boolean isBanjoSourceName(String name) {
+        return name.endsWith(".banjo") && !name.startsWith(".");
     }
 
-    public boolean addMarkersForProblems(List<BadExpr> problems) {
-        boolean addedMarker = false;
-		for(final BadExpr problem : problems) {
-            SourceFileRange r = SourceFileRange.compactSet(problem.getSourceFileRanges()).iterator().next();
-            addMarker(r, problem.getMessage(), IMarker.SEVERITY_ERROR);
-            if(r.sourceFile instanceof EclipseWorkspacePath) {
-                IFile file = ((EclipseWorkspacePath) r.sourceFile).getFile();
-                if(file != null) {
-                    addedMarker = true;
-                }
-            }
-		}
-        return addedMarker;
+    /**
+     * Folders that can't contain sources we care about: build output and
+     * other derived folders, hidden folders, team private folders, and
+     * folders like .git whose names start with a dot.
+     */
+    public static boolean isSkippedFolder(String name, boolean derived, boolean hidden, boolean teamPrivate) {
+        return derived || hidden || teamPrivate || name.startsWith(".");
     }
 
-    public List<BadExpr> getDesugarProblems(CoreExpr projectAst) throws Error {
-        return callAsync(() -> CoreErrorGatherer.problems(projectAst), List.nil());
+    public static List<ProblemMarker> markersForProblems(List<BadExpr> problems) {
+        return problems.bind(problem -> ProblemMarker.forProblem(problem).toList());
     }
 
-    public <T> T callAsync(Callable<T> problemsCalculation, T fallback) throws Error {
+    /**
+     * Run a calculation on the evaluation threads, returning none if it
+     * doesn't finish before the deadline or the build is interrupted.
+     */
+    public <T> Option<T> tryCallAsync(Callable<T> problemsCalculation, long deadlineMillis) throws Error {
         // If the job was already interrupted, always use the fallback value
         if(isInterrupted())
-            return fallback;
+            return Option.none();
 
-        // Fire off the async job
-        Future<T> desugarProblemsFuture = executor.submit(problemsCalculation);
-        for(;;) {
-            try {
-                // Wait 100ms each time to see if the job finished
-                return desugarProblemsFuture.get(100, TimeUnit.MILLISECONDS);
-            } catch(TimeoutException te) {
-                // If we are still waiting and we were requested to abort by
-                // eclipse, cancel the job
-                if(isInterrupted())
-                    desugarProblemsFuture.cancel(true);
+        // If we are still waiting and we were requested to abort by eclipse,
+        // the evaluation is cancelled
+        return evaluator.call(problemsCalculation, deadlineMillis, this::isInterrupted);
+    }
 
-                // and return the fallback value
-                return fallback;
-            } catch(InterruptedException ie) {
-                // If the thread was interrupted for any other reason, return
-                // the fallback value
-                return fallback;
-            } catch(ExecutionException e) {
-                // If an exception was thrown in the thread, throw an exception
-                throw new Error(e);
-            }
-        }
+    /**
+     * Run a test on the test threads, giving up after TEST_DEADLINE_MILLIS
+     * and stopping it if it uses more CPU time or memory than TEST_BUDGET
+     * allows.  Tests run in a background job, so they are cancelled by that
+     * job rather than by the build being interrupted.
+     *
+     * @throws EvaluationScheduler.BudgetExceededException
+     *             If the test went over budget
+     */
+    public static <T> Option<T> callTest(Callable<T> calculation, BooleanSupplier cancelled) throws Error {
+        if(cancelled.getAsBoolean())
+            return Option.none();
+        return testEvaluator.call(calculation, TEST_DEADLINE_MILLIS, TEST_BUDGET, cancelled);
     }
 
 	public static boolean addParseProblemMarkers(final IFile file, final SourceExpr parseResult) {
@@ -322,36 +747,104 @@ public class BanjoBuilder extends IncrementalProjectBuilder {
 		return haveParseProblems;
 	}
 
-	private void deleteMarkers(IFile file) {
-		try {
-			file.deleteMarkers(MARKER_TYPE, false, IResource.DEPTH_ZERO);
-		} catch (final CoreException ce) {
-			Activator.log(ce.getStatus());
-		}
-	}
-
-    private Set<CoreExpr> buildSources(Set<IFile> banjoSourceFiles, int numberOfSourceFiles, final IProgressMonitor monitor) {
-        monitor.beginTask("Checking syntax", numberOfSourceFiles);
+    private TreeMap<String, Option<Path>> buildSources(BanjoBuilderVisitor sources, final IProgressMonitor monitor) {
+        monitor.beginTask("Checking syntax", sources.numberOfSourceFiles);
         try {
-            Set<CoreExpr> affectedProjectAsts = Set.empty(CoreExpr.coreExprOrd);
-            for(IFile file : banjoSourceFiles) {
-                if(monitor.isCanceled() || this.isInterrupted())
-                    break;
-                monitor.subTask("Checking syntax for " + file.getFullPath());
-                try {
-                    Option<CoreExpr> ast = buildFile(file);
-                    if(ast.isSome())
-                        affectedProjectAsts = affectedProjectAsts.insert(ast.some());
-                } finally {
-                    monitor.worked(1);
+            // Fan the syntax checks out over the pool; they only read files
+            EclipseWorkspaceFileSystem fs = new EclipseWorkspaceFileSystem(new EclipseWorkspaceFileSystemProvider(), this.getProject().getWorkspace(), null);
+            List<Future<SourceFileCheck>> checks = List.nil();
+            for(IFile file : sources.banjoSourceFiles.values()) {
+                checks = checks.cons(syntaxCheckPool.submit(() -> checkFile(fs, file)));
+            }
+            checks = checks.reverse();
+
+            // Apply the results in order on the build thread, since writing
+            // markers and loading project ASTs have to happen here anyway
+            // Project ASTs are keyed on their root path; comparing the ASTs
+            // themselves would mean walking the whole tree
+            TreeMap<String, Option<Path>> affectedProjects = TreeMap.empty(Ord.stringOrd);
+            Set<String> reloadedProjects = Set.empty(Ord.stringOrd);
+            MarkerBatch markers = new MarkerBatch(MARKER_TYPE);
+            try {
+                for(List<Future<SourceFileCheck>> remaining = checks; remaining.isNotEmpty(); remaining = remaining.tail()) {
+                    Option<SourceFileCheck> result = awaitCheck(remaining.head(), monitor);
+                    if(result.isNone()) {
+                        for(Future<SourceFileCheck> check : remaining)
+                            check.cancel(true);
+                        // The files we didn't get to may have changed; make
+                        // the next build look at every file again
+                        forgetLastBuiltState();
+                        break;
+                    }
+                    SourceFileCheck check = result.some();
+                    monitor.subTask("Checking syntax for " + check.file.getFullPath());
+                    try {
+                        String fullPath = check.file.getFullPath().toString();
+                        // Test markers stay put unless the file changed;
+                        // unchanged files that are settled don't run their
+                        // tests again to put them back
+                        if(check.file.exists()) {
+                            if(check.changed)
+                                markers.replaceAllFileMarkers(check.file, check.markers);
+                            else
+                                markers.replaceFileMarkers(check.file, check.markers);
+                        }
+                        if(check.changed) {
+                            testResults().forgetFile(fullPath);
+                            sources.changedFiles = sources.changedFiles.insert(fullPath);
+                        }
+
+                        // Files in the project changed, so load it again - but
+                        // only once per build, since all the changes are already
+                        // on disk
+                        String projectKey = ProjectAstCache.key(check.projectRoot);
+                        if(check.changed && check.projectRoot.isSome() && !reloadedProjects.member(projectKey)) {
+                            projectAstCache.invalidate(projectKey);
+                            reloadedProjects = reloadedProjects.insert(projectKey);
+                        }
+                        sources.filesByProject.computeIfAbsent(projectKey, k -> new ArrayList<>()).add(fullPath);
+
+                        // An unchanged file whose tests all have results
+                        // from earlier doesn't need its project loaded
+                        boolean needsTests = check.changed || !testResults().isSettled(fullPath);
+                        if(check.analyzeProject && needsTests && !affectedProjects.contains(projectKey))
+                            affectedProjects = affectedProjects.set(projectKey, check.projectRoot);
+                        publishCheck(check);
+                    } finally {
+                        monitor.worked(1);
+                    }
                 }
+            } finally {
+                // Write all the syntax markers in one go
+                markers.apply(getProject().getWorkspace(), null);
             }
-            return affectedProjectAsts;
+            return affectedProjects;
         } finally {
             monitor.done();
         }
     }
 
+    /**
+     * Wait for a syntax check to finish.  Returns none if the build was
+     * cancelled or interrupted while waiting.
+     */
+    private Option<SourceFileCheck> awaitCheck(Future<SourceFileCheck> check, final IProgressMonitor monitor) throws Error {
+        for(;;) {
+            if(monitor.isCanceled() || this.isInterrupted())
+                return Option.none();
+            try {
+                return Option.some(check.get(100, TimeUnit.MILLISECONDS));
+            } catch(TimeoutException te) {
+                // Check for cancellation and keep waiting
+            } catch(InterruptedException ie) {
+                return Option.none();
+            } catch(ExecutionException e) {
+                // If an exception was thrown in the thread, throw an exception
+                throw new Error(e);
+            }
+        }
+    }
+
     /**
      * Common code for incremental and full builds.
      * 
@@ -362,41 +855,286 @@ public class BanjoBuilder extends IncrementalProjectBuilder {
      *            longer this might take
      */
     protected void projectBuild(BanjoBuilderVisitor visitor, final IProgressMonitor monitor) {
-        monitor.beginTask("Building Banjo Project", 10100);
+        monitor.beginTask("Building Banjo Project", 5100);
+        long timedOutBefore = evaluator.getTimedOutCount();
+        long abandonedBefore = evaluator.getAbandonedCount();
+        long overBudgetBefore = evaluator.getOverBudgetCount();
         try {
             visitor.collectSources();
             monitor.worked(100);
-            Set<CoreExpr> projectAsts = buildSources(
-                visitor.banjoSourceFiles,
-                visitor.numberOfSourceFiles,
+            boolean libraryChanged = checkLibrary();
+            TreeMap<String, Option<Path>> projects = buildSources(
+                visitor,
                 new SubProgressMonitor(monitor, 5000));
-            TreeMap<CoreExpr, P2<List<CoreExpr>, List<CoreExpr>>> testsAndExamples =
-                TreeMap.treeMap(CoreExpr.coreExprOrd, projectAsts.toList().map(
-                    (projectAst) -> P.p(projectAst, 
-                        P.p(TestAndExampleGatherer.findTests(projectAst).toList(), TestAndExampleGatherer.findExamples(projectAst).toList()))));
-            int totalTestsAndExamples = testsAndExamples.values().foldRight((a, b) -> a._1().length() + a._2().length() + b, 0);
-            if(totalTestsAndExamples > 0) {
-                int step = 5000 / totalTestsAndExamples;
-                for(P2<CoreExpr, P2<List<CoreExpr>, List<CoreExpr>>> p : testsAndExamples) {
-                    if(monitor.isCanceled() || this.isInterrupted())
-                        return;
-                    CoreExpr projectAst = p._1();
-                    List<CoreExpr> tests = p._2()._1();
-                    List<CoreExpr> examples = p._2()._2();
-                    Environment env = Environment.forProjectAst(projectAst);
-                    runTests(env, tests, monitor, step);
-                    runTests(env, examples, monitor, step);
-                }
-            } else {
-                monitor.worked(5000);
-            }
+            saveSummaries();
+
+            // Loading the projects and running their tests is left to a
+            // background job, so the build doesn't hold up the workspace.
+            // Auto-builds wait for things to go quiet first, so a burst of
+            // changes only loads and tests the projects once.
+            TestRequest request = new TestRequest(projects, visitor.changedFiles, visitor.filesByProject, libraryChanged);
+            scheduleTests(Option.some(request), buildKind == AUTO_BUILD ? BUILD_QUIET_PERIOD_MILLIS : 0);
         } catch (final CoreException e) {
             Activator.log(e.getStatus());
         } finally {
+            saveTestHistory();
+            saveTestResults();
+            reportTimeouts(evaluator.getTimedOutCount() - timedOutBefore, evaluator.getAbandonedCount() - abandonedBefore,
+                evaluator.getOverBudgetCount() - overBudgetBefore);
             monitor.done();
         }
     }
 
+    /**
+     * Tests to run in one project
+     */
+    private static class ProjectTests {
+        final Environment env;
+        final ArrayList<PendingTest> tests;
+        final Option<TestWorkerPool.Project> workerProject;
+
+        /**
+         * Files checked by the build that started the run; once all the
+         * tests have run, these have results for all their tests
+         */
+        final ArrayList<String> files;
+
+        ProjectTests(Environment env, ArrayList<PendingTest> tests, Option<TestWorkerPool.Project> workerProject, ArrayList<String> files) {
+            this.env = env;
+            this.tests = tests;
+            this.workerProject = workerProject;
+            this.files = files;
+        }
+    }
+
+    /**
+     * What a build asks the test job to do: the projects to load and look
+     * for tests in, and what changed.  Requests from builds that follow each
+     * other quickly are merged into one.
+     */
+    private static class TestRequest {
+        final TreeMap<String, Option<Path>> projects;
+        final Set<String> changedFiles;
+        final HashMap<String, ArrayList<String>> filesByProject;
+        final boolean libraryChanged;
+
+        TestRequest(TreeMap<String, Option<Path>> projects, Set<String> changedFiles, HashMap<String, ArrayList<String>> filesByProject, boolean libraryChanged) {
+            this.projects = projects;
+            this.changedFiles = changedFiles;
+            this.filesByProject = filesByProject;
+            this.libraryChanged = libraryChanged;
+        }
+
+        /**
+         * Combine an earlier request that never finished with this one
+         */
+        TestRequest mergeAfter(TestRequest earlier) {
+            TreeMap<String, Option<Path>> mergedProjects = earlier.projects;
+            for(P2<String, Option<Path>> p : projects)
+                mergedProjects = mergedProjects.set(p._1(), p._2());
+            HashMap<String, ArrayList<String>> mergedFiles = new HashMap<>();
+            for(HashMap<String, ArrayList<String>> m : List.list(earlier.filesByProject, filesByProject)) {
+                for(Map.Entry<String, ArrayList<String>> e : m.entrySet())
+                    mergedFiles.computeIfAbsent(e.getKey(), k -> new ArrayList<>()).addAll(e.getValue());
+            }
+            return new TestRequest(mergedProjects, earlier.changedFiles.union(changedFiles), mergedFiles,
+                earlier.libraryChanged || libraryChanged);
+        }
+    }
+
+    /**
+     * Background job that loads the projects a build found changes in and
+     * runs the tests that need to run.  A newer build cancels the job and
+     * takes over its request; tests it didn't get to have no result
+     * recorded, so the newer job picks them up again.
+     */
+    class TestRunJob extends Job {
+        final TestRequest request;
+        private volatile boolean finished = false;
+
+        TestRunJob(TestRequest request) {
+            super("Running Banjo tests for " + getProject().getName());
+            this.request = request;
+            setPriority(LONG);
+            // Only one test run per project at a time; a new run waits for
+            // the one it replaced to notice it was cancelled
+            setRule(testRunRule);
+        }
+
+        /**
+         * True once every test the request asked for has run
+         */
+        boolean isFinished() {
+            return finished;
+        }
+
+        @Override
+        protected IStatus run(IProgressMonitor monitor) {
+            monitor.beginTask(getName(), 1000);
+            long timedOutBefore = testEvaluator.getTimedOutCount();
+            long abandonedBefore = testEvaluator.getAbandonedCount();
+            long overBudgetBefore = testEvaluator.getOverBudgetCount();
+            try {
+                DependencyGraph.Affected affected = request.libraryChanged ? DependencyGraph.everything() : affectedBy(request.changedFiles);
+                ArrayList<ProjectTests> toRun = new ArrayList<>();
+                for(P2<String, Option<Path>> entry : request.projects) {
+                    if(monitor.isCanceled())
+                        return Status.CANCEL_STATUS;
+                    monitor.subTask("Loading " + entry._1());
+                    CoreExpr projectAst = projectAst(entry._2());
+                    if(entry._2().isSome())
+                        projectRoots.put(entry._1(), entry._2().some());
+                    // Only found the first time this AST is used
+                    TestIndex tests = projectAstCache.testIndex(entry._1(), projectAst);
+                    // Files that depend on a changed one are examined too;
+                    // once their tests have run they're settled again
+                    ArrayList<String> files = new ArrayList<>(request.filesByProject.getOrDefault(entry._1(), new ArrayList<>()));
+                    ArrayList<PendingTest> pending = collectTests(tests, affected, files, monitor);
+                    if(monitor.isCanceled())
+                        return Status.CANCEL_STATUS;
+                    if(pending.isEmpty()) {
+                        testResults().settle(files);
+                        continue;
+                    }
+                    // Reuse the environment from earlier builds if the project
+                    // hasn't changed since
+                    Environment env = projectAstCache.environment(entry._1(), projectAst);
+                    toRun.add(new ProjectTests(env, pending, workerProject(entry._1(), projectAst), files));
+                }
+                monitor.worked(100);
+
+                int total = 0;
+                for(ProjectTests p : toRun)
+                    total += p.tests.size();
+                IProgressMonitor testMonitor = new SubProgressMonitor(monitor, 900);
+                testMonitor.beginTask("Running tests", total);
+                for(ProjectTests p : toRun) {
+                    if(monitor.isCanceled())
+                        return Status.CANCEL_STATUS;
+                    HashSet<String> unfinished = new HashSet<>();
+                    // Fixtures shared by the project's tests, dropped when
+                    // they're done
+                    Option<SharedEvaluationMemo> shared = SHARED_EVALUATION_MEMO ?
+                        Option.some(new SharedEvaluationMemo(SHARED_EVALUATION_MEMO_SIZE)) :
+                        Option.none();
+                    try {
+                        if(runPendingTests(p.env, p.tests, p.workerProject, shared, unfinished, testMonitor, 1)) {
+                            p.files.removeAll(unfinished);
+                            testResults().settle(p.files);
+                        }
+                    } finally {
+                        if(shared.isSome()) {
+                            shared.some().close();
+                            reportSharedMemo(shared.some());
+                        }
+                    }
+                }
+                testMonitor.done();
+                if(monitor.isCanceled())
+                    return Status.CANCEL_STATUS;
+                finished = true;
+                return Status.OK_STATUS;
+            } finally {
+                saveTestHistory();
+                saveTestResults();
+                reportTimeouts(testEvaluator.getTimedOutCount() - timedOutBefore, testEvaluator.getAbandonedCount() - abandonedBefore,
+                    testEvaluator.getOverBudgetCount() - overBudgetBefore);
+                monitor.done();
+            }
+        }
+    }
+
+    /**
+     * Rule keeping test runs for this project from overlapping
+     */
+    private final ISchedulingRule testRunRule = new ISchedulingRule() {
+        @Override
+        public boolean contains(ISchedulingRule rule) {
+            return rule == this;
+        }
+
+        @Override
+        public boolean isConflicting(ISchedulingRule rule) {
+            return rule == this;
+        }
+    };
+
+    /**
+     * The latest test run started by this builder
+     */
+    private TestRunJob testRun = null;
+
+    /**
+     * Cancel the previous test run, if it's still waiting or running, and
+     * start a new one after the given delay.  Whatever the previous run
+     * didn't finish is merged into the new request.  Passing none just
+     * cancels the previous run.
+     */
+    private synchronized void scheduleTests(Option<TestRequest> request, long delayMillis) {
+        Option<TestRequest> merged = request;
+        if(testRun != null) {
+            testRun.cancel();
+            if(request.isSome() && !testRun.isFinished())
+                merged = Option.some(request.some().mergeAfter(testRun.request));
+        }
+        testRun = null;
+        if(merged.isNone() || merged.some().projects.isEmpty())
+            return;
+        testRun = new TestRunJob(merged.some());
+        testRun.schedule(delayMillis);
+    }
+
+    /**
+     * Get the shared pool of test worker JVMs, if tests are to be run in
+     * separate JVMs.
+     */
+    static synchronized Option<TestWorkerPool> testWorkers() {
+        // Threads stuck in tests can't be stopped inside eclipse, but a
+        // worker can be killed; once too many are stuck, use the workers
+        if(TEST_WORKERS <= 0 && !testEvaluator.isSaturated())
+            return Option.none();
+        if(testWorkers == null)
+            testWorkers = new TestWorkerPool(Math.max(1, TEST_WORKERS), EVALUATION_GRACE_MILLIS, TEST_WORKER_MAX_HEAP);
+        return Option.some(testWorkers);
+    }
+
+    public static synchronized void shutdownTestWorkers() {
+        if(testWorkers != null)
+            testWorkers.shutdown();
+        testWorkers = null;
+    }
+
+    /**
+     * Describe a project for the test workers.  Returns none if tests are
+     * run inside eclipse, or the project isn't on the local file system.
+     */
+    Option<TestWorkerPool.Project> workerProject(String projectKey, CoreExpr projectAst) {
+        Option<TestWorkerPool> pool = testWorkers();
+        Path root = projectRoots.get(projectKey);
+        if(pool.isNone() || root == null)
+            return Option.none();
+        Path fsRoot = root instanceof EclipseWorkspacePath ? ((EclipseWorkspacePath) root).toFileSystemPath() : root;
+        if(fsRoot == null)
+            return Option.none();
+        return Option.some(pool.some().project(projectKey, projectAst, fsRoot, langBundleSearchPath().snoc(fsRoot)));
+    }
+
+    private void reportTimeouts(long timedOut, long abandoned, long overBudget) {
+        if(timedOut > 0 || abandoned > 0)
+            Activator.log(new Status(IStatus.WARNING, Activator.PLUGIN_ID,
+                getProject().getName() + ": " + timedOut + " evaluation(s) timed out, " + abandoned + " abandoned while still running"));
+        if(overBudget > 0)
+            Activator.log(new Status(IStatus.WARNING, Activator.PLUGIN_ID,
+                getProject().getName() + ": " + overBudget + " evaluation(s) went over their CPU or memory budget; they were abandoned and may still be running"));
+    }
+
+    private void reportSharedMemo(SharedEvaluationMemo shared) {
+        if(shared.getHitCount() + shared.getMissCount() == 0)
+            return;
+        Activator.log(new Status(IStatus.INFO, Activator.PLUGIN_ID,
+            getProject().getName() + ": shared evaluation memo had " + shared.getHitCount() + " hit(s), " + shared.getMissCount() + " miss(es)"));
+    }
+
     /**
      * Try to give a useful indication of why an example or test wasn't true.
      * 
@@ -406,11 +1144,23 @@ public class BanjoBuilder extends IncrementalProjectBuilder {
      * @return
      */
     public static String explainFailure(Environment env, CoreExpr test, CoreExpr noscope) {
-        return explainFailure(env, test, noscope, TreeMap.empty(Ord.stringOrd));
+        return explainFailure(env, test, noscope, new EvaluationMemo());
+    }
+
+    /**
+     * Explain a failure, reusing any values already calculated while running
+     * the test.
+     */
+    public static String explainFailure(Environment env, CoreExpr test, CoreExpr noscope, EvaluationMemo memo) {
+        return explainFailure(env, test, noscope, TreeMap.empty(Ord.stringOrd), memo);
     }
 
     public static String explainFailure(Environment env, CoreExpr test, CoreExpr noscope, TreeMap<String, CoreExpr> defs) {
-        Value v = env.eval(test);
+        return explainFailure(env, test, noscope, defs, new EvaluationMemo());
+    }
+
+    public static String explainFailure(Environment env, CoreExpr test, CoreExpr noscope, TreeMap<String, CoreExpr> defs, EvaluationMemo memo) {
+        Value v = memo.eval(env, test);
         if(v instanceof Fail) {
             return ((Fail) v).getMessage();
         }
@@ -444,12 +1194,12 @@ public class BanjoBuilder extends IncrementalProjectBuilder {
 
             @Override
             public String call(Call call) {
-                Value target = env.eval(call.target);
+                Value target = memo.eval(env, call.target);
                 if(target instanceof Fail) {
                     return call.target.toSource() + ": " + ((Fail) target).getMessage();
                 }
                 for(CoreExpr arg : call.args) {
-                    Value argValue = env.eval(arg);
+                    Value argValue = memo.eval(env, arg);
                     if(arg instanceof Fail)
                         return arg.toSource() + ": " + ((Fail) argValue).getMessage();
                 }
@@ -463,8 +1213,8 @@ public class BanjoBuilder extends IncrementalProjectBuilder {
                     public String projection(Projection projection) {
                         // Check for the common case of x == y
                         if(call.args.isSingle() && projection.projection.eql(Operator.EQ.methodNameKey)) {
-                            Value lhs = env.eval(projection.object);
-                            Value rhs = env.eval(call.args.head());
+                            Value lhs = memo.eval(env, projection.object);
+                            Value rhs = memo.eval(env, call.args.head());
                             
                             return projection.object + " != " + call.args.head() + " since " + lhs + " != " + rhs;
                         } else {
@@ -484,12 +1234,12 @@ public class BanjoBuilder extends IncrementalProjectBuilder {
                 List<P2<String, CoreExpr>> stringExprBindings = let.bindings.map(P2.map1_(Identifier::getId));
                 List<P2<String, FreeExpression>> bindings1 = stringExprBindings.map(P2.map2_(FreeExpressionFactory::apply));
                 Environment env2 = env.let(bindings1);
-                return explainFailure(env2, let.body, noscope, defs.union(stringExprBindings));
+                return explainFailure(env2, let.body, noscope, defs.union(stringExprBindings), memo);
             }
 
             @Override
             public String projection(Projection projection) {
-                Value objectValue = env.eval(projection.object);
+                Value objectValue = memo.eval(env, projection.object);
                 if(objectValue instanceof Fail) {
                     return projection.object.toSource() + ": " + ((Fail) objectValue).getMessage();
                 }
@@ -497,29 +1247,291 @@ public class BanjoBuilder extends IncrementalProjectBuilder {
                     return this.fallback();
                 }
                 Environment env2 = env.projection(objectValue);
-                return explainFailure(env2, projection.projection, noscope, TreeMap.empty(Ord.stringOrd));
+                return explainFailure(env2, projection.projection, noscope, TreeMap.empty(Ord.stringOrd), memo);
             }
         });
     }
 
-    public void runTests(Environment env, List<CoreExpr> tests, final IProgressMonitor monitor, int step) throws Error {
-        for(CoreExpr test : tests) {
-            if(monitor.isCanceled() || this.isInterrupted())
-                return;
-            CoreExpr noscope = TestAndExampleGatherer.stripScope(test);
-            Set<SourceFileRange> ranges =
-                SourceFileRange.compactSet(noscope.getSourceFileRanges()).filter(r -> r.getSourceFile() instanceof EclipseWorkspacePath);
-            if(ranges.isEmpty()) {
+    /**
+     * Check whether the standard library changed since the tests were last
+     * run, either in this session or, using the saved results, in an
+     * earlier one.  If it did, the saved test results are dropped and true
+     * is returned.
+     */
+    boolean checkLibrary() {
+        long libraryGeneration = StandardLibrary.generation();
+        if(libraryGeneration == testedLibraryGeneration)
+            return false;
+        boolean firstCheck = testedLibraryGeneration == -1;
+        testedLibraryGeneration = libraryGeneration;
+        String fingerprint = StandardLibrary.fingerprint();
+        if(firstCheck && fingerprint.equals(testResults().getLibraryFingerprint()))
+            return false;
+        testResults().clear(fingerprint);
+        return true;
+    }
+
+    /**
+     * Find the files and names that might have been affected by changes to
+     * the given files.
+     */
+    DependencyGraph.Affected affectedBy(Set<String> changedFiles) {
+        return summaries().dependencyGraph().affected(changedFiles);
+    }
+
+    /**
+     * Key identifying a test for as long as its source doesn't change
+     */
+    static String testKey(SourceFileRange r, CoreExpr noscope) {
+        return TestWorker.testKey(r, noscope);
+    }
+
+    /**
+     * Check whether a test needs to run again.  A test can be skipped if we
+     * have its previous result and nothing its file depends on has changed
+     * since.
+     */
+    boolean needsRun(String fullPath, String testKey, DependencyGraph.Affected affected) {
+        if(!testResults().contains(fullPath, testKey) || !summaries().contains(fullPath))
+            return true;
+        return affected.file(fullPath);
+    }
+
+    /**
+     * Check whether the tests in a file can be skipped without looking at
+     * them: every one of them has a result and the file wasn't affected by
+     * the change.
+     */
+    boolean canSkipFile(String fullPath, DependencyGraph.Affected affected) {
+        return testResults().isSettled(fullPath) && summaries().contains(fullPath) && !affected.file(fullPath);
+    }
+
+    /**
+     * A test waiting to be run
+     */
+    private static class PendingTest {
+        final CoreExpr test;
+        final CoreExpr noscope;
+        final SourceFileRange range;
+        final IFile file;
+        final String testKey;
+        final TestHistory.Entry history;
+
+        PendingTest(CoreExpr test, CoreExpr noscope, SourceFileRange range, IFile file, String testKey, TestHistory.Entry history) {
+            this.test = test;
+            this.noscope = noscope;
+            this.range = range;
+            this.file = file;
+            this.testKey = testKey;
+            this.history = history;
+        }
+    }
+
+    /**
+     * Pick out the tests that need to run, in the order to run them.  Their
+     * previous results are forgotten until they've run again, so they are
+     * still picked up if this run is cancelled.
+     *
+     * Files that weren't affected by the change and already have results
+     * for all their tests are passed over without looking at their tests.
+     * The files whose tests were looked at are added to examinedFiles.
+     */
+    ArrayList<PendingTest> collectTests(TestIndex tests, DependencyGraph.Affected affected, Collection<String> examinedFiles, final IProgressMonitor monitor) {
+        ArrayList<PendingTest> toRun = new ArrayList<>();
+        for(Map.Entry<String, ArrayList<TestIndex.Test>> e : tests.byFile().entrySet()) {
+            if(monitor.isCanceled())
+                return new ArrayList<>();
+            String fullPath = e.getKey();
+            if(canSkipFile(fullPath, affected))
                 continue;
+            Set<String> testKeys = Set.empty(Ord.stringOrd);
+            for(TestIndex.Test t : e.getValue()) {
+                String testKey = testKey(t.range, t.noscope);
+                testKeys = testKeys.insert(testKey);
+                if(!needsRun(fullPath, testKey, affected))
+                    continue;
+                testResults().remove(fullPath, testKey);
+                toRun.add(new PendingTest(t.test, t.noscope, t.range, t.file, testKey, testHistory().get(fullPath, testKey)));
             }
-            SourceFileRange r = ranges.iterator().next();
-            boolean success = callAsync(() -> env.eval(test).isTrue(List.nil()), true);
-            if(!success) {
-                String reason = callAsync(() -> explainFailure(env, test, noscope), "Not true: " + noscope);
-                addMarker(r, reason, IMarker.SEVERITY_ERROR);
+            testHistory().retain(fullPath, testKeys);
+            examinedFiles.add(fullPath);
+        }
+        toRun.sort((a, b) -> TestHistory.SCHEDULING_ORDER.compare(a.history, b.history));
+        return toRun;
+    }
+
+    /**
+     * Run tests picked by collectTests, several at a time, and add markers
+     * for the failures as their results come in.  Returns false if the run
+     * was cancelled before all the tests finished.  Files with tests that
+     * timed out, and so have no result, are added to unfinishedFiles.  Tests
+     * run inside eclipse share their fixtures through the shared memo, if
+     * one is given.
+     */
+    boolean runPendingTests(Environment env, ArrayList<PendingTest> toRun, Option<TestWorkerPool.Project> workerProject, Option<SharedEvaluationMemo> shared,
+        Collection<String> unfinishedFiles, final IProgressMonitor monitor, int step) throws Error {
+        ExecutorCompletionService<TestOutcome> completion = new ExecutorCompletionService<>(testPool);
+        List<Future<TestOutcome>> pending = List.nil();
+        int running = 0;
+        for(PendingTest t : toRun) {
+            pending = pending.cons(completion.submit(() -> workerProject.isSome() ?
+                runTestInWorker(workerProject.some(), env, t.test, t.noscope, t.range, t.file, t.testKey, monitor::isCanceled) :
+                runTest(env, t.test, t.noscope, t.range, t.file, t.testKey, shared, monitor::isCanceled)));
+            running++;
+        }
+
+        // Marker changes are written in batches as the results come in; the
+        // failures are explained once their markers exist
+        MarkerBatch markers = new MarkerBatch(MARKER_TYPE);
+        ArrayList<FailureExplainer.Request> toExplain = new ArrayList<>();
+        long lastFlush = System.currentTimeMillis();
+        try {
+            for(; running > 0; running--) {
+                Future<TestOutcome> done;
+                do {
+                    if(monitor.isCanceled()) {
+                        for(Future<TestOutcome> f : pending)
+                            f.cancel(true);
+                        return false;
+                    }
+                    done = completion.poll(100, TimeUnit.MILLISECONDS);
+                } while(done == null);
+                TestOutcome outcome = done.get();
+                if(!outcome.finished) {
+                    // No result, so the file isn't settled and the test runs
+                    // again next time; a timeout replaces any old failure
+                    unfinishedFiles.add(outcome.getFullPath());
+                    if(outcome.warning.isSome()) {
+                        markers.replaceTestMarker(outcome.file, outcome.testKey,
+                            ProblemMarker.forRange(outcome.range, outcome.warning.some(), IMarker.SEVERITY_WARNING).map(m -> m.withTestKey(outcome.testKey)));
+                        explainer.forget(outcome.file, outcome.testKey);
+                    }
+                    monitor.worked(step);
+                    continue;
+                }
+                testResults().put(outcome.getFullPath(), outcome.testKey, outcome.failure);
+                testHistory().put(outcome.getFullPath(), outcome.testKey, new TestHistory.Entry(outcome.durationNanos, outcome.failure.isSome()));
+                Option<ProblemMarker> marker = outcome.failure.isSome() ?
+                    ProblemMarker.forRange(outcome.range, outcome.failure.some(), IMarker.SEVERITY_ERROR).map(m -> m.withTestKey(outcome.testKey)) :
+                    Option.none();
+                markers.replaceTestMarker(outcome.file, outcome.testKey, marker);
+                if(outcome.explanation.isSome())
+                    toExplain.add(outcome.explanation.some());
+                else
+                    explainer.forget(outcome.file, outcome.testKey);
+                if(markers.size() >= TEST_MARKER_BATCH_SIZE || System.currentTimeMillis() - lastFlush >= TEST_MARKER_BATCH_MILLIS) {
+                    markers.apply(getProject().getWorkspace(), null);
+                    explainer.addAll(toExplain);
+                    toExplain.clear();
+                    lastFlush = System.currentTimeMillis();
+                }
+                monitor.worked(step);
             }
-            monitor.worked(step);
+            return true;
+        } catch(InterruptedException ie) {
+            for(Future<TestOutcome> f : pending)
+                f.cancel(true);
+            return false;
+        } catch(ExecutionException e) {
+            // If an exception was thrown in the thread, throw an exception
+            throw new Error(e);
+        } finally {
+            markers.apply(getProject().getWorkspace(), null);
+            explainer.addAll(toExplain);
+        }
+    }
+
+    /**
+     * Evaluate a single test; this runs on one of the test pool threads.  A
+     * failure is reported with a short message, and the work of explaining
+     * it is left for the background explainer.
+     */
+    TestOutcome runTest(Environment env, CoreExpr test, CoreExpr noscope, SourceFileRange r, IFile file, String testKey,
+        Option<SharedEvaluationMemo> shared, BooleanSupplier cancelled) {
+        // Values calculated by the test are kept for explaining a failure
+        EvaluationMemo memo = new EvaluationMemo();
+        SharedEvaluationMemo.Scope scope = shared.isSome() ? shared.some().enter(env, test) : SharedEvaluationMemo.Scope.of(env, test);
+        long start = System.nanoTime();
+        Option<Boolean> result;
+        try {
+            result = callTest(() -> memo.eval(scope.env, scope.body).isTrue(List.nil()), cancelled);
+        } catch(EvaluationScheduler.BudgetExceededException e) {
+            discardEnvironment(env);
+            if(shared.isSome())
+                shared.some().discard(scope);
+            long durationNanos = System.nanoTime() - start;
+            // Inside eclipse the evaluation can't be forced to end
+            return new TestOutcome(test, r, file, testKey, Option.some(e.getMessage() + "; the evaluation could not be stopped and may still be running"),
+                durationNanos, Option.none());
+        } catch(Error e) {
+            // The evaluation threw, e.g. a StackOverflowError from deep
+            // recursion; that's a failure of this test, the same as when it
+            // runs in a worker
+            discardEnvironment(env);
+            if(shared.isSome())
+                shared.some().discard(scope);
+            long durationNanos = System.nanoTime() - start;
+            return new TestOutcome(test, r, file, testKey, Option.some(EvaluationScheduler.failureMessage(e)), durationNanos, Option.none());
         }
+        long durationNanos = System.nanoTime() - start;
+        if(result.isNone()) {
+            // The evaluation may have stopped half way through calculating
+            // something, so don't let later builds or tests use this
+            // environment
+            discardEnvironment(env);
+            if(shared.isSome())
+                shared.some().discard(scope);
+            return TestOutcome.unfinished(test, r, file, testKey, cancelled.getAsBoolean() ? Option.none() : Option.some(timedOutMessage()), durationNanos);
+        }
+        if(result.some())
+            return new TestOutcome(test, r, file, testKey, Option.none(), durationNanos, Option.none());
+        String reason = "Not true: " + noscope;
+        FailureExplainer.Request explanation = new FailureExplainer.Request(file, testKey, reason,
+            () -> explainFailure(scope.env, scope.body, noscope, scope.defs, memo), env);
+        return new TestOutcome(test, r, file, testKey, Option.some(reason), durationNanos, Option.some(explanation));
+    }
+
+    /**
+     * Run a single test in one of the test worker JVMs.  Failures are still
+     * explained in the background here, since that needs the AST nodes.
+     */
+    TestOutcome runTestInWorker(TestWorkerPool.Project project, Environment env, CoreExpr test, CoreExpr noscope, SourceFileRange r, IFile file, String testKey, BooleanSupplier cancelled)
+            throws InterruptedException {
+        if(file.getLocation() == null)
+            return runTest(env, test, noscope, r, file, testKey, Option.none(), cancelled);
+        String fileKey = TestWorker.fileKey(file.getLocation().toFile().toPath());
+        TestWorkerPool.Result result = testWorkers().some().run(project, fileKey, testKey, TEST_DEADLINE_MILLIS, TEST_BUDGET);
+        switch(result.status) {
+        case "pass":
+            return new TestOutcome(test, r, file, testKey, Option.none(), result.durationNanos, Option.none());
+        case "timeout":
+            return TestOutcome.unfinished(test, r, file, testKey, Option.some(timedOutMessage()), result.durationNanos);
+        case "false":
+            String reason = "Not true: " + noscope;
+            FailureExplainer.Request explanation = new FailureExplainer.Request(file, testKey, reason,
+                () -> explainFailure(env, test, noscope, new EvaluationMemo()), env);
+            return new TestOutcome(test, r, file, testKey, Option.some(reason), result.durationNanos, Option.some(explanation));
+        case "missing":
+            // The worker doesn't see the test the same way we do; run it here
+            return runTest(env, test, noscope, r, file, testKey, Option.none(), cancelled);
+        default:
+            return new TestOutcome(test, r, file, testKey, Option.some(result.message), result.durationNanos, Option.none());
+        }
+    }
+
+    /**
+     * Stop reusing an environment whose evaluation was given up on or
+     * stopped, which may have left it in a bad state
+     */
+    static void discardEnvironment(Environment env) {
+        projectAstCache.discardEnvironment(env);
+    }
+
+    /**
+     * Warning for a test that was given up on
+     */
+    static String timedOutMessage() {
+        return "Gave up on this test after " + TEST_DEADLINE_MILLIS + "ms; it will run again in the next build";
     }
 
     protected void fullBuild(final IProgressMonitor monitor) {
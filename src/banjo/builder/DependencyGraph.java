@@ -0,0 +1,219 @@
+package banjo.builder;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+import org.eclipse.core.runtime.IPath;
+
+import banjo.expr.token.TokenScanner;
+import banjo.expr.token.TokenVisitor;
+import banjo.expr.util.FileRange;
+import banjo.expr.util.ParserReader;
+import fj.Ord;
+import fj.data.List;
+import fj.data.Set;
+
+/**
+ * File level approximation of which source files depend on which others.
+ *
+ * A source file is reachable by the name of the file and the names of the
+ * folders containing it, so those are the names it "provides".  Any
+ * identifier appearing in a file is a name it "uses".  This over-estimates
+ * dependencies - local variables and slot names are counted as well - but
+ * never misses one, which is what matters when deciding what needs to be
+ * checked again.
+ *
+ * The graph is kept up to date as files are checked, rather than built
+ * again for every change.
+ */
+public class DependencyGraph {
+    /**
+     * Names used by each file in the project, keyed by workspace path
+     */
+    private final HashMap<String, Set<String>> uses = new HashMap<>();
+
+    /**
+     * Reverse of uses: the files using each name
+     */
+    private final HashMap<String, java.util.Set<String>> usersOfName = new HashMap<>();
+
+    /**
+     * Record the names a file uses, replacing what it used before.  Only the
+     * names that were added or dropped touch the reverse index, so this is
+     * cheap to call for every file a build checks.
+     */
+    public synchronized void update(String file, Set<String> newUses) {
+        final Set<String> oldUses = uses.put(file, newUses);
+        if(oldUses == newUses)
+            return;
+        final Set<String> before = oldUses == null ? Set.empty(Ord.stringOrd) : oldUses;
+        for(String name : before.minus(newUses)) {
+            removeUser(name, file);
+        }
+        for(String name : newUses.minus(before)) {
+            usersOfName.computeIfAbsent(name, k -> new java.util.HashSet<>()).add(file);
+        }
+    }
+
+    /**
+     * Forget a file that was deleted or can no longer be checked
+     */
+    public synchronized void remove(String file) {
+        final Set<String> oldUses = uses.remove(file);
+        if(oldUses == null)
+            return;
+        for(String name : oldUses) {
+            removeUser(name, file);
+        }
+    }
+
+    public synchronized void clear() {
+        uses.clear();
+        usersOfName.clear();
+    }
+
+    private void removeUser(String name, String file) {
+        final java.util.Set<String> users = usersOfName.get(name);
+        if(users != null && users.remove(file) && users.isEmpty())
+            usersOfName.remove(name);
+    }
+
+    /**
+     * Files affected by a change, directly or through a chain of uses.
+     */
+    public static class Affected {
+        public final Set<String> files;
+        public final boolean everything;
+
+        public Affected(Set<String> files, boolean everything) {
+            this.files = files;
+            this.everything = everything;
+        }
+
+        /**
+         * Check whether a file may have been affected.  Every file using a
+         * name provided by an affected file is itself affected, so a file
+         * outside them can't contain anything that was affected.
+         */
+        public boolean file(String fullPath) {
+            return everything || files.member(fullPath);
+        }
+    }
+
+    /**
+     * Find the files affected by a change to the given files.
+     */
+    public synchronized Affected affected(Iterable<String> changedFiles) {
+        Set<String> files = Set.empty(Ord.stringOrd);
+        Set<String> names = Set.empty(Ord.stringOrd);
+        final ArrayDeque<String> queue = new ArrayDeque<>();
+        for(String file : changedFiles) {
+            queue.add(file);
+        }
+        while(!queue.isEmpty()) {
+            final String file = queue.remove();
+            if(files.member(file))
+                continue;
+            files = files.insert(file);
+            for(String name : providedNames(file)) {
+                if(names.member(name))
+                    continue;
+                names = names.insert(name);
+                final java.util.Set<String> users = usersOfName.get(name);
+                if(users != null)
+                    queue.addAll(users);
+            }
+        }
+        return new Affected(files, false);
+    }
+
+    /**
+     * Affected value for when everything has to be assumed changed
+     */
+    public static Affected everything() {
+        return new Affected(Set.empty(Ord.stringOrd), true);
+    }
+
+    /**
+     * Names a file can be referred to by: its own name without the extension,
+     * and the names of the folders it is in.
+     */
+    public static List<String> providedNames(String fullPath) {
+        final IPath path = new org.eclipse.core.runtime.Path(fullPath);
+        List<String> result = List.nil();
+        for(String segment : path.segments()) {
+            result = result.cons(segment);
+        }
+        if(result.isNotEmpty()) {
+            final String fileName = result.head();
+            final int dot = fileName.lastIndexOf('.');
+            if(dot > 0)
+                result = result.cons(fileName.substring(0, dot));
+        }
+        return result;
+    }
+
+    /**
+     * Find all the identifiers that appear in some source code.
+     */
+    public static Set<String> identifiersIn(String source) {
+        final TokenScanner scanner = new TokenScanner();
+        final ParserReader in = ParserReader.fromSubstring("", source, 0, source.length());
+        final IdentifierCollector collector = new IdentifierCollector();
+        try {
+            while(scanner.next(in, collector)) {
+                // Keep going until end of file
+            }
+        } catch(final IOException e) {
+            throw new UncheckedIOException(e); // Shouldn't happen with a string as input
+        }
+        return collector.identifiers;
+    }
+
+    private static final class IdentifierCollector implements TokenVisitor<Boolean> {
+        Set<String> identifiers = Set.empty(Ord.stringOrd);
+
+        @Override
+        public Boolean eof(FileRange entireFileRange) {
+            return false;
+        }
+
+        @Override
+        public Boolean stringLiteral(FileRange range, int indentColumn, String string) {
+            return true;
+        }
+
+        @Override
+        public Boolean numberLiteral(FileRange range, int indentColumn, Number number) {
+            return true;
+        }
+
+        @Override
+        public Boolean identifier(FileRange range, int indentColumn, String id) {
+            identifiers = identifiers.insert(id);
+            return true;
+        }
+
+        @Override
+        public Boolean operator(FileRange range, int indentColumn, String op) {
+            return true;
+        }
+
+        @Override
+        public Boolean whitespace(FileRange range, String text) {
+            return true;
+        }
+
+        @Override
+        public Boolean comment(FileRange range, String text) {
+            return true;
+        }
+
+        @Override
+        public Boolean badToken(FileRange range, String text, String message) {
+            return true;
+        }
+    }
+}
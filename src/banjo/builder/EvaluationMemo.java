@@ -0,0 +1,60 @@
+package banjo.builder;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import banjo.eval.environment.Environment;
+import banjo.expr.core.CoreExpr;
+import banjo.value.Value;
+
+/**
+ * Values already calculated while running one test, so that explaining a
+ * failure can reuse them instead of evaluating everything again.
+ *
+ * Entries are keyed on the identity of the expression node and the
+ * environment it was evaluated in; the same expression evaluated in a
+ * different environment (e.g. inside a let) is a different entry.
+ */
+public class EvaluationMemo {
+    private final ConcurrentHashMap<Key, Value> values = new ConcurrentHashMap<>();
+
+    private static final class Key {
+        final Environment env;
+        final CoreExpr expr;
+
+        Key(Environment env, CoreExpr expr) {
+            this.env = env;
+            this.expr = expr;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(env) * 31 + System.identityHashCode(expr);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(!(obj instanceof Key))
+                return false;
+            final Key other = (Key) obj;
+            return env == other.env && expr == other.expr;
+        }
+    }
+
+    /**
+     * Evaluate an expression, or return the value from the last time it was
+     * evaluated in the same environment.
+     */
+    public Value eval(Environment env, CoreExpr expr) {
+        final Key key = new Key(env, expr);
+        final Value cached = values.get(key);
+        if(cached != null)
+            return cached;
+        final Value value = env.eval(expr);
+        values.putIfAbsent(key, value);
+        return value;
+    }
+
+    public int size() {
+        return values.size();
+    }
+}
@@ -0,0 +1,458 @@
+package banjo.builder;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import fj.data.Option;
+
+/**
+ * Runs evaluations on a fixed number of worker threads, giving up on them
+ * after a deadline.  The deadline counts from when the evaluation starts
+ * running, so time spent waiting for a free thread doesn't count against it.
+ *
+ * Evaluation code doesn't check for interruption, so interrupting an
+ * overdue evaluation usually isn't enough to stop it, and Thread.stop() is
+ * not supported by newer JVMs.  If an evaluation is still running after a
+ * grace period, it is abandoned and its thread is retired: a fresh thread
+ * takes its place in the pool, and the old one keeps running (and using CPU
+ * time) until the evaluation ends by itself, if it ever does.  Only a few
+ * threads per pool thread are retired; once that many are stuck the
+ * scheduler is saturated, stuck evaluations keep their pool threads, and
+ * evaluations waiting for a thread time out counting from when they were
+ * submitted.  Work that might not terminate is better moved to separate
+ * JVMs (see TestWorkerPool) once that happens, since those can be killed.
+ *
+ * An evaluation can also be given a budget for CPU time and allocated
+ * memory.  Its thread's counters are checked while waiting for it, and
+ * after it has been abandoned until it actually ends.  If it goes over
+ * budget it is abandoned straight away: it is asked to stop and its thread
+ * is retired.  On JVMs without Thread.stop() nothing can force it to end,
+ * so a runaway evaluation that ignores interrupts keeps running and
+ * allocating; tests that might do that are better run in separate JVMs
+ * (see TestWorkerPool), which can be killed.
+ */
+public class EvaluationScheduler {
+    private final ThreadPoolExecutor pool;
+    private final ScheduledExecutorService reaper;
+    private final int poolSize;
+    private final long gracePeriodMillis;
+
+    /**
+     * Number of threads running evaluations we gave up on, which have been
+     * replaced in the pool
+     */
+    private int retired = 0;
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong abandoned = new AtomicLong();
+    private final AtomicLong overBudget = new AtomicLong();
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    /**
+     * How often to check the budget of an evaluation that has one
+     */
+    private static final long BUDGET_CHECK_MILLIS = 10;
+
+    /**
+     * How often to check on an evaluation that was given up on
+     */
+    private static final long ABANDONED_CHECK_MILLIS = 100;
+
+    /**
+     * Most threads to retire per pool thread.  Past this, stuck evaluations
+     * are left holding their threads, so that a project full of
+     * non-terminating tests can't start an unlimited number of threads.
+     */
+    private static final int MAX_RETIRED_PER_THREAD = 4;
+
+    /**
+     * How long an idle thread left over from retiring one is kept
+     */
+    private static final long KEEP_ALIVE_MILLIS = 1000;
+
+    /**
+     * Limits on the resources an evaluation may use; zero means no limit.
+     */
+    public static class Budget {
+        public final long cpuNanos;
+        public final long allocatedBytes;
+
+        public Budget(long cpuNanos, long allocatedBytes) {
+            this.cpuNanos = cpuNanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        public boolean isUnlimited() {
+            return cpuNanos <= 0 && allocatedBytes <= 0;
+        }
+
+        boolean exceededBy(long usedCpuNanos, long usedAllocatedBytes) {
+            return (cpuNanos > 0 && usedCpuNanos > cpuNanos) || (allocatedBytes > 0 && usedAllocatedBytes > allocatedBytes);
+        }
+    }
+
+    public static final Budget UNLIMITED = new Budget(0, 0);
+
+    /**
+     * Thrown when an evaluation went over its budget and was abandoned.  It
+     * was asked to stop, but may still be running.
+     */
+    public static class BudgetExceededException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        public final long cpuNanos;
+        public final long allocatedBytes;
+
+        public BudgetExceededException(long cpuNanos, long allocatedBytes) {
+            super("Exceeded budget: used " + (cpuNanos / 1000000) + "ms CPU time and allocated " + (allocatedBytes / 1024) + "KB");
+            this.cpuNanos = cpuNanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+    }
+
+    public EvaluationScheduler(String name, int threads, long gracePeriodMillis) {
+        this.poolSize = threads;
+        this.gracePeriodMillis = gracePeriodMillis;
+        this.pool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(), daemonThreads(name));
+        this.reaper = Executors.newSingleThreadScheduledExecutor(daemonThreads(name + " reaper"));
+    }
+
+    /**
+     * Add a thread to the pool to take the place of one that is stuck
+     * running an abandoned evaluation.  Returns false if too many threads
+     * have been retired already.
+     */
+    private synchronized boolean retire() {
+        if(isSaturated())
+            return false;
+        retired++;
+        // Grow the maximum first; the core size can't be larger
+        pool.setMaximumPoolSize(poolSize + retired);
+        pool.setCorePoolSize(poolSize + retired);
+        pool.prestartCoreThread();
+        return true;
+    }
+
+    /**
+     * Check whether as many threads have been retired as are allowed, so
+     * that another stuck evaluation would keep its pool thread.  Callers
+     * that can run their evaluations elsewhere should do so.
+     */
+    public synchronized boolean isSaturated() {
+        return retired >= poolSize * MAX_RETIRED_PER_THREAD;
+    }
+
+    /**
+     * A retired thread finished its evaluation; shrink the pool again.  The
+     * extra thread exits once it has been idle for a while.
+     */
+    private synchronized void restore() {
+        retired--;
+        pool.setCorePoolSize(poolSize + retired);
+        pool.setMaximumPoolSize(poolSize + retired);
+    }
+
+    static ThreadFactory daemonThreads(String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return r -> {
+            final Thread t = new Thread(r, name + " " + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * Wraps a task to keep track of which thread is running it, so the
+     * thread can be retired if the task runs over time.
+     */
+    private class Task<T> implements Callable<T> {
+        private final Callable<T> body;
+        private Thread runner = null;
+        private boolean stopped = false;
+        private boolean retiredRunner = false;
+        private boolean abandonedRunner = false;
+        private boolean overBudget = false;
+        private volatile long startMillis = 0;
+        private long startCpuNanos;
+        private long startAllocatedBytes;
+
+        Task(Callable<T> body) {
+            this.body = body;
+        }
+
+        @Override
+        public T call() throws Exception {
+            synchronized(this) {
+                if(stopped)
+                    throw new CancellationException();
+                runner = Thread.currentThread();
+                startCpuNanos = cpuNanos(runner);
+                startAllocatedBytes = allocatedBytes(runner);
+                startMillis = System.currentTimeMillis();
+            }
+            try {
+                // If stopIfRunning() stops us, the ThreadDeath ends up in the
+                // task's future and the worker carries on with the next task
+                return body.call();
+            } finally {
+                final boolean wasRetired;
+                synchronized(this) {
+                    runner = null;
+                    wasRetired = retiredRunner;
+                }
+                if(wasRetired)
+                    restore();
+            }
+        }
+
+        /**
+         * When the task started running, or zero if it's still queued
+         */
+        long getStartMillis() {
+            return startMillis;
+        }
+
+        synchronized boolean isRunning() {
+            return runner != null;
+        }
+
+        /**
+         * Give up on the thread running this task and put a fresh one in its
+         * place, if the scheduler isn't saturated.  Returns true the first
+         * time it is called while the task is running, since the thread is
+         * then left running an evaluation nobody is waiting for.
+         */
+        synchronized boolean abandonRunner() {
+            if(runner == null)
+                return false;
+            if(!retiredRunner)
+                retiredRunner = retire();
+            if(abandonedRunner)
+                return false;
+            abandonedRunner = true;
+            return true;
+        }
+
+        /**
+         * Check whether the task has used more than its budget.  If it has,
+         * the thread running it is stopped and the amounts used are
+         * returned.
+         */
+        synchronized Option<BudgetExceededException> checkBudget(Budget budget) {
+            if(runner == null)
+                return Option.none();
+            final long usedCpuNanos = cpuNanos(runner) - startCpuNanos;
+            final long usedAllocatedBytes = allocatedBytes(runner) - startAllocatedBytes;
+            if(!budget.exceededBy(usedCpuNanos, usedAllocatedBytes))
+                return Option.none();
+            stopIfRunning();
+            return Option.some(new BudgetExceededException(usedCpuNanos, usedAllocatedBytes));
+        }
+
+        /**
+         * Note that the task went over budget.  Returns false if it was
+         * noted already.
+         */
+        synchronized boolean markOverBudget() {
+            if(overBudget)
+                return false;
+            overBudget = true;
+            return true;
+        }
+
+        /**
+         * Ask the thread running this task to stop, if it's still running
+         * it.  Interrupting it is all newer JVMs allow; older ones can stop
+         * it outright.  Either way the caller can't count on it stopping.
+         */
+        @SuppressWarnings("deprecation")
+        synchronized void stopIfRunning() {
+            stopped = true;
+            if(runner == null)
+                return;
+            runner.interrupt();
+            try {
+                runner.stop();
+            } catch(UnsupportedOperationException e) {
+                // Not supported by this JVM; the thread will be retired
+                // instead if it keeps running
+            }
+        }
+    }
+
+    /**
+     * CPU time used by a thread so far, or zero if that can't be measured
+     */
+    private static long cpuNanos(Thread thread) {
+        if(!threads.isThreadCpuTimeSupported())
+            return 0;
+        return Math.max(0, threads.getThreadCpuTime(thread.getId()));
+    }
+
+    /**
+     * Bytes allocated by a thread so far, or zero if that can't be measured
+     */
+    private static long allocatedBytes(Thread thread) {
+        if(!(threads instanceof com.sun.management.ThreadMXBean))
+            return 0;
+        final com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+        if(!sunThreads.isThreadAllocatedMemorySupported())
+            return 0;
+        return Math.max(0, sunThreads.getThreadAllocatedBytes(thread.getId()));
+    }
+
+    /**
+     * Run a task, waiting until it finishes, the deadline passes or the
+     * caller cancels.  Returns none if the task didn't finish.
+     *
+     * @param task
+     *            Task to run
+     * @param deadlineMillis
+     *            How long to wait for it
+     * @param cancelled
+     *            Polled while waiting; returning true abandons the task
+     */
+    public <T> Option<T> call(Callable<T> task, long deadlineMillis, BooleanSupplier cancelled) throws Error {
+        return call(task, deadlineMillis, UNLIMITED, cancelled);
+    }
+
+    /**
+     * Run a task with a budget for CPU time and memory.
+     *
+     * @throws BudgetExceededException
+     *             If the task went over its budget and was abandoned
+     */
+    public <T> Option<T> call(Callable<T> task, long deadlineMillis, Budget budget, BooleanSupplier cancelled) throws Error, BudgetExceededException {
+        final Task<T> wrapper = new Task<>(task);
+        final long submittedMillis = System.currentTimeMillis();
+        final Future<T> future = pool.submit(wrapper);
+        // Wait up to 100ms each time, so we notice cancellation; check more
+        // often if there's a budget to keep to
+        final long checkMillis = budget.isUnlimited() ? 100 : BUDGET_CHECK_MILLIS;
+        for(;;) {
+            // The clock only starts once the task is running, unless stuck
+            // evaluations are holding on to the pool threads, when it might
+            // never start
+            final long startMillis = wrapper.getStartMillis();
+            final long remaining = startMillis != 0 ? startMillis + deadlineMillis - System.currentTimeMillis() :
+                isSaturated() ? submittedMillis + deadlineMillis - System.currentTimeMillis() :
+                checkMillis;
+            try {
+                return Option.some(future.get(Math.max(0, Math.min(remaining, checkMillis)), TimeUnit.MILLISECONDS));
+            } catch(TimeoutException te) {
+                if(!budget.isUnlimited()) {
+                    final Option<BudgetExceededException> exceeded = wrapper.checkBudget(budget);
+                    if(exceeded.isSome()) {
+                        if(wrapper.markOverBudget())
+                            overBudget.incrementAndGet();
+                        abandon(wrapper, future, budget);
+                        throw exceeded.some();
+                    }
+                }
+                if(remaining <= 0) {
+                    timedOut.incrementAndGet();
+                    abandon(wrapper, future, budget);
+                    return Option.none();
+                }
+                if(cancelled.getAsBoolean()) {
+                    abandon(wrapper, future, budget);
+                    return Option.none();
+                }
+            } catch(CancellationException ce) {
+                return Option.none();
+            } catch(InterruptedException ie) {
+                // If the thread was interrupted for any other reason, give up
+                abandon(wrapper, future, budget);
+                return Option.none();
+            } catch(ExecutionException e) {
+                // If an exception was thrown in the thread, throw an exception
+                throw new Error(e);
+            }
+        }
+    }
+
+    /**
+     * Describe what went wrong in a task, given the Error call() threw
+     * because the task threw something.
+     */
+    public static String failureMessage(Error e) {
+        final Throwable cause = e.getCause() != null && e.getCause().getCause() != null ? e.getCause().getCause() : e;
+        return "Evaluation failed: " + cause;
+    }
+
+    /**
+     * Cancel a task we've stopped waiting for.  If it is still running after
+     * the grace period, or goes over its budget, it is asked to stop and its
+     * thread is replaced.
+     */
+    private <T> void abandon(Task<T> wrapper, Future<T> future, Budget budget) {
+        future.cancel(true);
+        watch(wrapper, budget, System.currentTimeMillis() + gracePeriodMillis);
+    }
+
+    /**
+     * Keep an eye on an abandoned task until it ends.  Its budget is still
+     * checked, since the thread keeps using CPU time and memory whether or
+     * not anyone is waiting for the result.
+     */
+    private <T> void watch(Task<T> wrapper, Budget budget, long graceEndMillis) {
+        reaper.schedule(() -> {
+            if(!wrapper.isRunning())
+                return;
+            boolean giveUp = System.currentTimeMillis() >= graceEndMillis;
+            if(!budget.isUnlimited() && wrapper.checkBudget(budget).isSome()) {
+                if(wrapper.markOverBudget())
+                    overBudget.incrementAndGet();
+                giveUp = true;
+            }
+            if(giveUp) {
+                wrapper.stopIfRunning();
+                if(wrapper.abandonRunner())
+                    abandoned.incrementAndGet();
+            }
+            watch(wrapper, budget, graceEndMillis);
+        }, budget.isUnlimited() ? ABANDONED_CHECK_MILLIS : BUDGET_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Number of tasks that were abandoned because they ran past their
+     * deadline
+     */
+    public long getTimedOutCount() {
+        return timedOut.get();
+    }
+
+    /**
+     * Number of abandoned tasks that were still running after the grace
+     * period or went over budget.  Their threads may still be running them.
+     */
+    public long getAbandonedCount() {
+        return abandoned.get();
+    }
+
+    /**
+     * Number of tasks abandoned for going over their budget
+     */
+    public long getOverBudgetCount() {
+        return overBudget.get();
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+        reaper.shutdownNow();
+    }
+}
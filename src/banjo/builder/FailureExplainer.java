@@ -0,0 +1,208 @@
+package banjo.builder;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IMarker;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IWorkspace;
+import org.eclipse.core.resources.IWorkspaceRunnable;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+
+import banjo.editor.Activator;
+import banjo.eval.environment.Environment;
+import fj.data.Option;
+
+/**
+ * Background job that works out why failed tests failed.
+ *
+ * The builder marks a failed test with a cheap "Not true: ..." message
+ * straight away and queues the detailed explanation here.  The job runs at
+ * low priority and replaces the message on the marker once the explanation
+ * is ready, so the marker itself holds the result.  If the test is run
+ * again before then, the old request is replaced by the new one.
+ *
+ * The placeholder is kept on the marker as well, so that a marker for a
+ * test that fails the same way again is left as it is, explanation and
+ * all, and isn't explained a second time.
+ */
+public class FailureExplainer extends Job {
+    /**
+     * Number of explanations to collect before writing them to the markers
+     */
+    private static final int BATCH_SIZE = 20;
+
+    /**
+     * An explanation waiting to be calculated
+     */
+    public static class Request {
+        final IFile file;
+        final String testKey;
+
+        /**
+         * Message the marker was created with; the marker is only updated if
+         * it still has this message.
+         */
+        final String placeholder;
+        final Callable<String> explanation;
+
+        /**
+         * Environment the explanation evaluates things in
+         */
+        final Environment env;
+
+        public Request(IFile file, String testKey, String placeholder, Callable<String> explanation, Environment env) {
+            this.file = file;
+            this.testKey = testKey;
+            this.placeholder = placeholder;
+            this.explanation = explanation;
+            this.env = env;
+        }
+
+        String key() {
+            return file.getFullPath().toString() + "#" + testKey;
+        }
+    }
+
+    private final String markerType;
+    private final IWorkspace workspace;
+    private final LinkedHashMap<String, Request> queue = new LinkedHashMap<>();
+
+    public FailureExplainer(String markerType, IWorkspace workspace) {
+        super("Explaining Banjo test failures");
+        this.markerType = markerType;
+        this.workspace = workspace;
+        setPriority(DECORATE);
+    }
+
+    /**
+     * Queue explanations for tests whose markers have been written, and make
+     * sure the job is going to run.
+     */
+    public void addAll(Iterable<Request> requests) {
+        boolean added = false;
+        synchronized(queue) {
+            for(Request request : requests) {
+                queue.remove(request.key());
+                queue.put(request.key(), request);
+                added = true;
+            }
+        }
+        if(added)
+            schedule();
+    }
+
+    /**
+     * Drop the queued explanation for a test, e.g. because it passed when
+     * it was run again.
+     */
+    public void forget(IFile file, String testKey) {
+        synchronized(queue) {
+            queue.remove(file.getFullPath().toString() + "#" + testKey);
+        }
+    }
+
+    public void clear() {
+        synchronized(queue) {
+            queue.clear();
+        }
+    }
+
+    private Option<Request> next() {
+        synchronized(queue) {
+            final Iterator<Request> it = queue.values().iterator();
+            if(!it.hasNext())
+                return Option.none();
+            final Request request = it.next();
+            it.remove();
+            return Option.some(request);
+        }
+    }
+
+    @Override
+    protected IStatus run(IProgressMonitor monitor) {
+        final ArrayList<Request> done = new ArrayList<>();
+        final ArrayList<String> explanations = new ArrayList<>();
+        try {
+            for(Option<Request> next = next(); next.isSome(); next = next()) {
+                if(monitor.isCanceled())
+                    return Status.CANCEL_STATUS;
+                final Request request = next.some();
+                if(!request.file.exists() || !needsExplaining(request))
+                    continue;
+                final Option<String> explanation = BanjoBuilder.testEvaluator.call(
+                    request.explanation, BanjoBuilder.TEST_DEADLINE_MILLIS, monitor::isCanceled);
+                if(explanation.isNone()) {
+                    // The evaluation was given up on part way through
+                    BanjoBuilder.discardEnvironment(request.env);
+                    continue;
+                }
+                if(explanation.some().equals(request.placeholder))
+                    continue;
+                done.add(request);
+                explanations.add(explanation.some());
+                if(done.size() >= BATCH_SIZE) {
+                    update(done, explanations, monitor);
+                    done.clear();
+                    explanations.clear();
+                }
+            }
+        } finally {
+            update(done, explanations, monitor);
+        }
+        return Status.OK_STATUS;
+    }
+
+    /**
+     * Check whether the test still has a marker showing the placeholder
+     */
+    private boolean needsExplaining(Request request) {
+        try {
+            for(IMarker marker : request.file.findMarkers(markerType, false, IResource.DEPTH_ZERO)) {
+                if(isUnexplained(marker, request))
+                    return true;
+            }
+        } catch(final CoreException e) {
+            Activator.log(e.getStatus());
+        }
+        return false;
+    }
+
+    private static boolean isUnexplained(IMarker marker, Request request) {
+        return request.testKey.equals(marker.getAttribute(ProblemMarker.TEST_KEY, null)) &&
+            request.placeholder.equals(marker.getAttribute(IMarker.MESSAGE, null));
+    }
+
+    /**
+     * Replace the placeholder messages on the markers for the given tests
+     */
+    private void update(ArrayList<Request> requests, ArrayList<String> explanations, IProgressMonitor monitor) {
+        if(requests.isEmpty())
+            return;
+        final IWorkspaceRunnable update = m -> {
+            for(int i = 0; i < requests.size(); i++) {
+                final Request request = requests.get(i);
+                if(!request.file.exists())
+                    continue;
+                for(IMarker marker : request.file.findMarkers(markerType, false, IResource.DEPTH_ZERO)) {
+                    if(isUnexplained(marker, request)) {
+                        marker.setAttributes(new String[] { IMarker.MESSAGE, ProblemMarker.UNEXPLAINED_MESSAGE },
+                            new Object[] { explanations.get(i), request.placeholder });
+                    }
+                }
+            }
+        };
+        try {
+            workspace.run(update, null, IWorkspace.AVOID_UPDATE, monitor);
+        } catch(final CoreException e) {
+            Activator.log(e.getStatus());
+        }
+    }
+}
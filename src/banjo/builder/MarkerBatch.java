@@ -0,0 +1,200 @@
+package banjo.builder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IMarker;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IWorkspace;
+import org.eclipse.core.resources.IWorkspaceRunnable;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+
+import banjo.editor.Activator;
+import fj.data.List;
+import fj.data.Option;
+
+/**
+ * Collects marker changes so they can be written to the workspace in one
+ * operation.  Rather than deleting and recreating markers, the new markers
+ * are compared to the existing ones, and only markers that actually changed
+ * are touched.  That keeps the number of resource change events (and the
+ * flickering in the Problems view) down.
+ */
+public class MarkerBatch {
+    private final String markerType;
+
+    /**
+     * Files whose markers are replaced by a new set of markers
+     */
+    private final LinkedHashMap<String, FileMarkers> files = new LinkedHashMap<>();
+
+    /**
+     * Markers reported for files other than the one being replaced; these
+     * are added if not already present
+     */
+    private final ArrayList<ProblemMarker> extras = new ArrayList<>();
+
+    /**
+     * Test markers to replace
+     */
+    private final ArrayList<TestMarker> tests = new ArrayList<>();
+
+    private static class FileMarkers {
+        final IFile file;
+        List<ProblemMarker> markers = List.nil();
+
+        /**
+         * Whether to leave the file's test markers alone
+         */
+        boolean keepTestMarkers = true;
+
+        FileMarkers(IFile file) {
+            this.file = file;
+        }
+    }
+
+    private static class TestMarker {
+        final IFile file;
+        final String testKey;
+        final Option<ProblemMarker> marker;
+
+        TestMarker(IFile file, String testKey, Option<ProblemMarker> marker) {
+            this.file = file;
+            this.testKey = testKey;
+            this.marker = marker;
+        }
+    }
+
+    public MarkerBatch(String markerType) {
+        this.markerType = markerType;
+    }
+
+    /**
+     * Replace the markers on a file with the given ones, except for the
+     * markers left by tests, which are only changed by replaceTestMarker().
+     * Any of the markers that belong to a different file are added to that
+     * file instead.
+     */
+    public void replaceFileMarkers(IFile file, List<ProblemMarker> markers) {
+        addFileMarkers(file, markers);
+    }
+
+    /**
+     * Replace all the markers on a file, including those left by tests; used
+     * when the file changed so its tests' markers no longer apply.
+     */
+    public void replaceAllFileMarkers(IFile file, List<ProblemMarker> markers) {
+        addFileMarkers(file, markers).keepTestMarkers = false;
+    }
+
+    private FileMarkers addFileMarkers(IFile file, List<ProblemMarker> markers) {
+        FileMarkers fm = files.computeIfAbsent(file.getFullPath().toString(), k -> new FileMarkers(file));
+        for(ProblemMarker marker : markers) {
+            if(marker.file.equals(file))
+                fm.markers = fm.markers.cons(marker);
+            else
+                extras.add(marker);
+        }
+        return fm;
+    }
+
+    /**
+     * Replace the marker for a test, or remove it if there's no marker.
+     */
+    public void replaceTestMarker(IFile file, String testKey, Option<ProblemMarker> marker) {
+        tests.add(new TestMarker(file, testKey, marker));
+    }
+
+    public int size() {
+        return files.size() + extras.size() + tests.size();
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Write the changes to the workspace, and start a new batch.
+     */
+    public void apply(IWorkspace workspace, IProgressMonitor monitor) {
+        if(isEmpty())
+            return;
+        final ArrayList<FileMarkers> fileChanges = new ArrayList<>(files.values());
+        final ArrayList<TestMarker> testChanges = new ArrayList<>(tests);
+        final ArrayList<ProblemMarker> extraMarkers = new ArrayList<>();
+        for(ProblemMarker marker : extras) {
+            final FileMarkers fm = files.get(marker.file.getFullPath().toString());
+            if(fm != null)
+                fm.markers = fm.markers.cons(marker);
+            else
+                extraMarkers.add(marker);
+        }
+        files.clear();
+        extras.clear();
+        tests.clear();
+        final IWorkspaceRunnable update = m -> {
+            final ArrayList<IMarker> obsolete = new ArrayList<>();
+            final ArrayList<ProblemMarker> added = new ArrayList<>();
+            for(FileMarkers fm : fileChanges) {
+                if(!fm.file.exists())
+                    continue;
+                final ArrayList<IMarker> existing = new ArrayList<>();
+                for(IMarker marker : fm.file.findMarkers(markerType, false, IResource.DEPTH_ZERO)) {
+                    if(!fm.keepTestMarkers || marker.getAttribute(ProblemMarker.TEST_KEY, null) == null)
+                        existing.add(marker);
+                }
+                diff(existing.toArray(new IMarker[existing.size()]), fm.markers, obsolete, added);
+            }
+            for(ProblemMarker marker : extraMarkers) {
+                if(!marker.file.exists())
+                    continue;
+                // Leave the other markers on the file alone
+                diff(marker.file.findMarkers(markerType, false, IResource.DEPTH_ZERO), List.single(marker), new ArrayList<>(), added);
+            }
+            for(TestMarker tm : testChanges) {
+                if(!tm.file.exists())
+                    continue;
+                final ArrayList<IMarker> existing = new ArrayList<>();
+                for(IMarker marker : tm.file.findMarkers(markerType, false, IResource.DEPTH_ZERO)) {
+                    if(tm.testKey.equals(marker.getAttribute(ProblemMarker.TEST_KEY, null)))
+                        existing.add(marker);
+                }
+                diff(existing.toArray(new IMarker[existing.size()]), tm.marker.toList(), obsolete, added);
+            }
+            if(!obsolete.isEmpty())
+                workspace.deleteMarkers(obsolete.toArray(new IMarker[obsolete.size()]));
+            for(ProblemMarker marker : added) {
+                marker.file.createMarker(markerType).setAttributes(marker.attributes());
+            }
+        };
+        try {
+            workspace.run(update, null, IWorkspace.AVOID_UPDATE, monitor);
+        } catch(final CoreException e) {
+            Activator.log(e.getStatus());
+        }
+    }
+
+    /**
+     * Work out which existing markers to delete and which new ones to add.
+     */
+    private static void diff(IMarker[] existing, List<ProblemMarker> wanted, ArrayList<IMarker> obsolete, ArrayList<ProblemMarker> added) throws CoreException {
+        final HashMap<Map<String, Object>, ArrayList<ProblemMarker>> missing = new HashMap<>();
+        for(ProblemMarker marker : wanted) {
+            missing.computeIfAbsent(marker.attributes(), k -> new ArrayList<>()).add(marker);
+        }
+        for(IMarker marker : existing) {
+            final ArrayList<ProblemMarker> same = missing.get(ProblemMarker.attributes(marker));
+            if(same == null || same.isEmpty())
+                obsolete.add(marker);
+            else
+                same.remove(same.size() - 1);
+        }
+        for(ArrayList<ProblemMarker> markers : missing.values()) {
+            added.addAll(markers);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package banjo.builder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.runtime.CoreException;
+
+import banjo.expr.BadExpr;
+import fj.data.List;
+import fj.data.Option;
+import fj.data.Set;
+
+/**
+ * Remembers the parse and desugar problems found in source files so that
+ * files which haven't changed since the last build don't have to be parsed
+ * again.  Only the problems are kept, not the ASTs; project ASTs are loaded
+ * by banjo-lang from the files themselves, so keeping a file's AST here
+ * would only use up memory.
+ *
+ * Entries are keyed on the file's workspace path and validated using the
+ * file's modification stamp.  If the stamp changed, the content hash is
+ * compared so that a file that was touched but not modified is still a hit.
+ *
+ * The least recently used entries are dropped once the cache is full.
+ */
+public class ParseCache {
+    public static class Entry {
+        public final long modificationStamp;
+        public final String contentHash;
+        public final List<BadExpr> parseProblems;
+        public final List<BadExpr> desugarProblems;
+
+        /**
+         * Identifiers used in the file; see DependencyGraph
+         */
+        public final Set<String> uses;
+
+        public Entry(long modificationStamp, String contentHash, List<BadExpr> parseProblems, List<BadExpr> desugarProblems, Set<String> uses) {
+            this.modificationStamp = modificationStamp;
+            this.contentHash = contentHash;
+            this.parseProblems = parseProblems;
+            this.desugarProblems = desugarProblems;
+            this.uses = uses;
+        }
+
+        public Entry withModificationStamp(long newModificationStamp) {
+            return new Entry(newModificationStamp, contentHash, parseProblems, desugarProblems, uses);
+        }
+    }
+
+    private final int maxEntries;
+    private final LinkedHashMap<String, Entry> entries;
+
+    public ParseCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > ParseCache.this.maxEntries;
+            }
+        };
+    }
+
+    private static String key(IFile file) {
+        return file.getFullPath().toString();
+    }
+
+    /**
+     * Look up the cached results for a file.  Returns none if the file isn't
+     * in the cache or its contents changed since it was cached.
+     */
+    public Option<Entry> get(IFile file) throws CoreException, IOException {
+        final String key = key(file);
+        final long modificationStamp = file.getModificationStamp();
+        final Entry entry;
+        synchronized(this) {
+            entry = entries.get(key);
+        }
+        if(entry == null)
+            return Option.none();
+        if(entry.modificationStamp == modificationStamp)
+            return Option.some(entry);
+
+        // The file was written to, but maybe with the same contents
+        if(!contentHash(file).equals(entry.contentHash))
+            return Option.none();
+        final Entry touched = entry.withModificationStamp(modificationStamp);
+        put(file, touched);
+        return Option.some(touched);
+    }
+
+    public synchronized void put(IFile file, Entry entry) {
+        entries.put(key(file), entry);
+    }
+
+    public synchronized void remove(IFile file) {
+        entries.remove(key(file));
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Calculate a hash of the file's current contents.
+     */
+    public static String contentHash(IFile file) throws CoreException, IOException {
+        return contentHash(readContents(file));
+    }
+
+    public static String contentHash(byte[] contents) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch(NoSuchAlgorithmException e) {
+            throw new Error(e);
+        }
+        final StringBuilder sb = new StringBuilder();
+        for(byte b : digest.digest(contents)) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    public static byte[] readContents(IFile file) throws CoreException, IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buf = new byte[8192];
+        try(InputStream in = file.getContents(true)) {
+            for(int n; (n = in.read(buf)) > 0; ) {
+                out.write(buf, 0, n);
+            }
+        }
+        return out.toByteArray();
+    }
+}
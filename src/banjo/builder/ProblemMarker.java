@@ -0,0 +1,139 @@
+package banjo.builder;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IMarker;
+import org.eclipse.core.runtime.CoreException;
+
+import banjo.editor.Activator;
+import banjo.expr.BadExpr;
+import banjo.expr.util.FileRange;
+import banjo.expr.util.SourceFileRange;
+import fj.data.Option;
+
+/**
+ * A problem marker that has been computed but not yet written to the
+ * workspace.  These can be calculated on any thread; they are written in
+ * batches (see MarkerBatch) by the build thread for parse and desugar
+ * problems, and by the test job for test results.
+ */
+public class ProblemMarker {
+    /**
+     * Marker attribute identifying the test or example a marker was
+     * reported for
+     */
+    public static final String TEST_KEY = "banjo.testKey";
+
+    /**
+     * Marker attribute holding the message a test failure marker was created
+     * with, once FailureExplainer has replaced it with an explanation
+     */
+    public static final String UNEXPLAINED_MESSAGE = "banjo.unexplainedMessage";
+
+    public final IFile file;
+    public final String message;
+    public final int severity;
+    public final int lineNumber;
+    public final int charStart;
+    public final int charEnd;
+    public final Option<String> testKey;
+
+    public ProblemMarker(IFile file, String message, int severity, int lineNumber, int charStart, int charEnd, Option<String> testKey) {
+        this.file = file;
+        this.message = message;
+        this.severity = severity;
+        this.lineNumber = lineNumber;
+        this.charStart = charStart;
+        this.charEnd = charEnd;
+        this.testKey = testKey;
+    }
+
+    public ProblemMarker(IFile file, String message, int severity, int lineNumber, int charStart, int charEnd) {
+        this(file, message, severity, lineNumber, charStart, charEnd, Option.none());
+    }
+
+    public ProblemMarker withTestKey(String newTestKey) {
+        return new ProblemMarker(file, message, severity, lineNumber, charStart, charEnd, Option.some(newTestKey));
+    }
+
+    /**
+     * Compute the marker for a problem at the given location, if that
+     * location is a file in the eclipse workspace.
+     */
+    public static Option<ProblemMarker> forRange(SourceFileRange sfr, String message, int severity) {
+        // Only try to add markers if the source file came from eclipse
+        if(!(sfr.sourceFile instanceof EclipseWorkspacePath))
+            return Option.none();
+
+        IFile file = ((EclipseWorkspacePath) sfr.sourceFile).getFile();
+        if(file == null)
+            return Option.none();
+
+        FileRange range = sfr.getFileRange();
+        return Option.some(new ProblemMarker(file, message, severity, range.getStartLine(), range.getStartOffset(), range.getEndOffset()));
+    }
+
+    /**
+     * Compute the marker for a parse or desugar problem, reported at the
+     * first place the problem occurs.
+     */
+    public static Option<ProblemMarker> forProblem(BadExpr problem) {
+        SourceFileRange r = SourceFileRange.compactSet(problem.getSourceFileRanges()).iterator().next();
+        return forRange(r, problem.getMessage(), IMarker.SEVERITY_ERROR);
+    }
+
+    /**
+     * Attributes to set on the marker
+     */
+    public Map<String, Object> attributes() {
+        final HashMap<String, Object> attributes = new HashMap<>();
+        attributes.put(IMarker.MESSAGE, message);
+        attributes.put(IMarker.SEVERITY, severity);
+        attributes.put(IMarker.LINE_NUMBER, lineNumber);
+        attributes.put(IMarker.CHAR_START, charStart);
+        attributes.put(IMarker.CHAR_END, charEnd);
+        if(testKey.isSome())
+            attributes.put(TEST_KEY, testKey.some());
+        return attributes;
+    }
+
+    /**
+     * Get the attributes of an existing marker that we would have set, for
+     * comparing with attributes().  An explained failure is compared using
+     * the message it was created with, so running the test again with the
+     * same outcome keeps the explanation.
+     */
+    public static Map<String, Object> attributes(IMarker marker) throws CoreException {
+        final HashMap<String, Object> attributes = new HashMap<>();
+        for(String key : ATTRIBUTE_NAMES) {
+            final Object value = marker.getAttribute(key);
+            if(value != null)
+                attributes.put(key, value);
+        }
+        final Object unexplained = marker.getAttribute(UNEXPLAINED_MESSAGE);
+        if(unexplained != null)
+            attributes.put(IMarker.MESSAGE, unexplained);
+        return attributes;
+    }
+
+    private static final String[] ATTRIBUTE_NAMES = {
+        IMarker.MESSAGE, IMarker.SEVERITY, IMarker.LINE_NUMBER, IMarker.CHAR_START, IMarker.CHAR_END, TEST_KEY
+    };
+
+    /**
+     * Write this marker to the workspace.
+     */
+    public void create(String markerType) {
+        // Only try to add a marker to a file that still exists
+        if(!file.exists())
+            return;
+
+        try {
+            file.createMarker(markerType).setAttributes(attributes());
+        } catch (final CoreException e) {
+            Activator.log(e.getStatus());
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package banjo.builder;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+
+import banjo.eval.environment.Environment;
+import banjo.expr.core.CoreExpr;
+import fj.data.Option;
+
+/**
+ * Remembers the AST loaded for each project root, so that a project only
+ * has to be loaded again after one of its source files actually changed.
+ *
+ * Project roots are identified by their path string, since workspace paths
+ * don't implement hashCode().
+ *
+ * The evaluation environment for each AST is kept as well, so that values
+ * worked out while running tests in one build are still there for the next
+ * one.  An environment is dropped along with its AST, and also when an
+ * evaluation using it was given up on or stopped part way through, since
+ * that may have left some of its lazily calculated values half done.
+ * The tests found in each AST are kept too (see TestIndex), so finding
+ * them only walks the AST once.
+ *
+ * Project ASTs include the standard library, so the whole cache is dropped
+ * when the library generation changes.
+ *
+ * Each key has a version that changes whenever it is invalidated.  Loading
+ * a project can take a while, and a file may be saved while it's loading;
+ * the AST is only cached if the version is still the one taken before the
+ * load started, so an AST read before the save can't replace the newer one.
+ */
+public class ProjectAstCache {
+    private final HashMap<String, CoreExpr> asts = new HashMap<>();
+    private final HashMap<String, Environment> environments = new HashMap<>();
+    private final HashMap<String, TestIndex> testIndexes = new HashMap<>();
+    private final HashMap<String, Long> versions = new HashMap<>();
+    private long nextVersion = 1;
+
+    /**
+     * Version of every key that hasn't been invalidated since the cache was
+     * last cleared
+     */
+    private long clearedVersion = 0;
+    private long libraryGeneration = -1;
+
+    /**
+     * Key used for a project root; files that aren't part of any project
+     * share the key for "no root".
+     */
+    public static String key(Option<Path> projectRoot) {
+        return projectRoot.isSome() ? projectRoot.some().toString() : "";
+    }
+
+    public synchronized Option<CoreExpr> get(String key, long libraryGeneration) {
+        if(!checkLibraryGeneration(libraryGeneration))
+            return Option.none();
+        return Option.fromNull(asts.get(key));
+    }
+
+    /**
+     * Get the current version of a key; take this before loading the AST
+     * and pass it to put().
+     */
+    public synchronized long version(String key) {
+        return versions.getOrDefault(key, clearedVersion);
+    }
+
+    /**
+     * Cache an AST, unless the key was invalidated since the given version
+     * was taken.  Returns false if the AST was out of date and wasn't
+     * cached.
+     */
+    public synchronized boolean put(String key, CoreExpr ast, long libraryGeneration, long version) {
+        if(!checkLibraryGeneration(libraryGeneration) || version(key) != version)
+            return false;
+        asts.put(key, ast);
+        environments.remove(key);
+        testIndexes.remove(key);
+        return true;
+    }
+
+
+    /**
+     * Get the environment for evaluating tests in a project AST.  If the AST
+     * is the one cached for the key, the environment is cached with it and
+     * reused by later builds.
+     */
+    public synchronized Environment environment(String key, CoreExpr ast) {
+        if(asts.get(key) != ast)
+            return Environment.forProjectAst(ast);
+        return environments.computeIfAbsent(key, k -> Environment.forProjectAst(ast));
+    }
+
+    /**
+     * Get the tests in a project AST.  If the AST is the one cached for the
+     * key, they are only found the first time.
+     */
+    public TestIndex testIndex(String key, CoreExpr ast) {
+        synchronized(this) {
+            final TestIndex cached = testIndexes.get(key);
+            if(cached != null && asts.get(key) == ast)
+                return cached;
+        }
+        // Walk the AST without holding the lock
+        final TestIndex index = TestIndex.forProjectAst(ast);
+        synchronized(this) {
+            if(asts.get(key) == ast)
+                testIndexes.put(key, index);
+        }
+        return index;
+    }
+
+    /**
+     * Stop reusing an environment; the next build gets a fresh one for the
+     * same AST.
+     */
+    public synchronized void discardEnvironment(Environment env) {
+        environments.values().removeIf(e -> e == env);
+    }
+
+    /**
+     * Drop the cached ASTs if the library has changed.  Returns false if the
+     * caller is using an older library than the cache is.
+     */
+    private boolean checkLibraryGeneration(long libraryGeneration) {
+        if(libraryGeneration > this.libraryGeneration) {
+            asts.clear();
+            environments.clear();
+            testIndexes.clear();
+            this.libraryGeneration = libraryGeneration;
+        }
+        return libraryGeneration == this.libraryGeneration;
+    }
+
+    public synchronized void invalidate(String key) {
+        asts.remove(key);
+        environments.remove(key);
+        testIndexes.remove(key);
+        versions.put(key, nextVersion++);
+    }
+
+    public synchronized void clear() {
+        asts.clear();
+        environments.clear();
+        testIndexes.clear();
+        versions.clear();
+        clearedVersion = nextVersion++;
+    }
+}
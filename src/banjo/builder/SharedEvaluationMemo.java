@@ -0,0 +1,177 @@
+package banjo.builder;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import banjo.eval.environment.Environment;
+import banjo.expr.core.CoreExpr;
+import banjo.expr.core.Let;
+import banjo.expr.free.FreeExpression;
+import banjo.expr.free.FreeExpressionFactory;
+import banjo.expr.token.Identifier;
+import fj.Ord;
+import fj.P2;
+import fj.data.List;
+import fj.data.TreeMap;
+
+/**
+ * Fixtures shared by all the tests of a project during one test run.
+ *
+ * A test comes with the definitions around it wrapped around it as lets,
+ * and tests written next to each other have the same definitions.  Instead
+ * of each test evaluating the lets itself, which gives it a fresh
+ * environment where every fixture has to be calculated again, the
+ * environment for a let is made once and the tests share it.  Environments
+ * keep the values they calculate, so a fixture one test needed is already
+ * there for the next.
+ *
+ * Scopes are keyed on the identity of the enclosing environment and the
+ * source of the let's definitions, since tests don't necessarily share the
+ * AST nodes for them.  Banjo evaluation has no side effects, so sharing
+ * them doesn't change any test's result.
+ *
+ * The table is synchronized and bounded, dropping the least recently used
+ * scopes, and is cleared once the run's tests are done.
+ */
+public class SharedEvaluationMemo {
+    private final int maxSize;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final LinkedHashMap<Key, Environment> scopes;
+    private boolean closed = false;
+
+    private static final class Key {
+        final Environment env;
+        final String definitions;
+
+        Key(Environment env, String definitions) {
+            this.env = env;
+            this.definitions = definitions;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(env) * 31 + definitions.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(!(obj instanceof Key))
+                return false;
+            final Key other = (Key) obj;
+            return env == other.env && definitions.equals(other.definitions);
+        }
+    }
+
+    /**
+     * The body of a test and the environment to evaluate it in, with the
+     * definitions of the lets that were taken off it
+     */
+    public static class Scope {
+        public final Environment env;
+        public final CoreExpr body;
+        public final TreeMap<String, CoreExpr> defs;
+
+        /**
+         * Environments of the lets taken off, innermost first
+         */
+        final List<Environment> environments;
+
+        Scope(Environment env, CoreExpr body, TreeMap<String, CoreExpr> defs, List<Environment> environments) {
+            this.env = env;
+            this.body = body;
+            this.defs = defs;
+            this.environments = environments;
+        }
+
+        /**
+         * Scope for evaluating a test on its own
+         */
+        public static Scope of(Environment env, CoreExpr test) {
+            return new Scope(env, test, TreeMap.empty(Ord.stringOrd), List.nil());
+        }
+    }
+
+    public SharedEvaluationMemo(int maxSize) {
+        this.maxSize = maxSize;
+        this.scopes = new LinkedHashMap<Key, Environment>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Environment> eldest) {
+                return size() > SharedEvaluationMemo.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Take the lets off a test, using the shared environment for each one
+     * if another test already made it.
+     */
+    public Scope enter(Environment env, CoreExpr test) {
+        Environment scopeEnv = env;
+        CoreExpr body = test;
+        TreeMap<String, CoreExpr> defs = TreeMap.empty(Ord.stringOrd);
+        List<Environment> environments = List.nil();
+        while(body instanceof Let) {
+            final Let let = (Let) body;
+            final List<P2<String, CoreExpr>> bindings = let.bindings.map(P2.map1_(Identifier::getId));
+            scopeEnv = scope(scopeEnv, bindings);
+            defs = defs.union(bindings);
+            environments = environments.cons(scopeEnv);
+            body = let.body;
+        }
+        return new Scope(scopeEnv, body, defs, environments);
+    }
+
+    private Environment scope(Environment env, List<P2<String, CoreExpr>> bindings) {
+        final StringBuilder definitions = new StringBuilder();
+        for(P2<String, CoreExpr> binding : bindings)
+            definitions.append(binding._1()).append(" = ").append(binding._2().toSource()).append('\n');
+        final Key key = new Key(env, definitions.toString());
+        synchronized(scopes) {
+            final Environment cached = scopes.get(key);
+            if(cached != null) {
+                hits.incrementAndGet();
+                return cached;
+            }
+            misses.incrementAndGet();
+            final List<P2<String, FreeExpression>> free = bindings.map(P2.map2_(FreeExpressionFactory::apply));
+            final Environment scopeEnv = env.let(free);
+            if(!closed)
+                scopes.put(key, scopeEnv);
+            return scopeEnv;
+        }
+    }
+
+    /**
+     * Stop sharing the environments of a scope whose evaluation was given
+     * up on or stopped, which may have left them in a bad state.
+     */
+    public void discard(Scope scope) {
+        synchronized(scopes) {
+            for(Environment env : scope.environments)
+                scopes.values().removeIf(e -> e == env);
+        }
+    }
+
+    /**
+     * Drop the shared scopes at the end of the run.  Explanations done after
+     * this keep the scope their test used.
+     */
+    public void close() {
+        synchronized(scopes) {
+            closed = true;
+            scopes.clear();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+}
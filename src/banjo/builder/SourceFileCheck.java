@@ -0,0 +1,61 @@
+package banjo.builder;
+
+import java.nio.file.Path;
+
+import org.eclipse.core.resources.IFile;
+
+import fj.data.List;
+import fj.data.Option;
+
+/**
+ * Outcome of checking a single source file for parse and desugar problems.
+ */
+public class SourceFileCheck {
+    public final IFile file;
+
+    /**
+     * Markers to write for the problems found in the file
+     */
+    public final List<ProblemMarker> markers;
+
+    /**
+     * Root of the project the file is part of, if any
+     */
+    public final Option<Path> projectRoot;
+
+    /**
+     * If true, the file's project AST should be loaded and analyzed further.
+     * This is false when the file couldn't be read or had parse/desugar
+     * problems.
+     */
+    public final boolean analyzeProject;
+
+    /**
+     * True if the file's contents may have changed since it was last
+     * checked, which means any AST loaded for its project is out of date.
+     */
+    public final boolean changed;
+
+    /**
+     * For a changed file, what to remember in the parse cache and the saved
+     * summaries once the build has applied this check; none means forget
+     * what was remembered about the file.
+     */
+    public final Option<ParseCache.Entry> cacheEntry;
+    public final Option<SourceFileSummaries.Summary> summary;
+
+    public SourceFileCheck(IFile file, List<ProblemMarker> markers, Option<Path> projectRoot, boolean analyzeProject, boolean changed,
+        Option<ParseCache.Entry> cacheEntry, Option<SourceFileSummaries.Summary> summary) {
+        this.file = file;
+        this.markers = markers;
+        this.projectRoot = projectRoot;
+        this.analyzeProject = analyzeProject;
+        this.changed = changed;
+        this.cacheEntry = cacheEntry;
+        this.summary = summary;
+    }
+
+    public SourceFileCheck(IFile file, List<ProblemMarker> markers, Option<Path> projectRoot, boolean analyzeProject, boolean changed) {
+        this(file, markers, projectRoot, analyzeProject, changed, Option.none(), Option.none());
+    }
+}
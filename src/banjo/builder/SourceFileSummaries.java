@@ -0,0 +1,231 @@
+package banjo.builder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IWorkspaceRoot;
+import org.eclipse.core.runtime.CoreException;
+
+import banjo.editor.Activator;
+import fj.Ord;
+import fj.data.List;
+import fj.data.Option;
+import fj.data.Set;
+
+/**
+ * Results of checking each source file in a project for parse and desugar
+ * problems, saved in a compact binary file in the plugin state area.  When
+ * a file's modification stamp (or failing that, its content hash) matches
+ * the saved summary, the problems can be replayed from the summary instead
+ * of parsing the file again.  This makes the first build after a restart
+ * much cheaper.
+ */
+public class SourceFileSummaries {
+    private static final int MAGIC = 0x42616e6a; // "Banj"
+    private static final int VERSION = 2;
+
+    /**
+     * Longest message we'll save; writeUTF() can only handle 64k bytes
+     */
+    private static final int MAX_MESSAGE_LENGTH = 8192;
+
+    public static class Summary {
+        public final long modificationStamp;
+        public final String contentHash;
+        public final List<ProblemMarker> parseMarkers;
+        public final List<ProblemMarker> desugarMarkers;
+
+        /**
+         * Identifiers used in the file; see DependencyGraph
+         */
+        public final Set<String> uses;
+
+        public Summary(long modificationStamp, String contentHash, List<ProblemMarker> parseMarkers, List<ProblemMarker> desugarMarkers, Set<String> uses) {
+            this.modificationStamp = modificationStamp;
+            this.contentHash = contentHash;
+            this.parseMarkers = parseMarkers;
+            this.desugarMarkers = desugarMarkers;
+            this.uses = uses;
+        }
+
+        public Summary withModificationStamp(long newModificationStamp) {
+            return new Summary(newModificationStamp, contentHash, parseMarkers, desugarMarkers, uses);
+        }
+    }
+
+    private final HashMap<String, Summary> summaries = new HashMap<>();
+    private final DependencyGraph dependencyGraph = new DependencyGraph();
+    private boolean dirty = false;
+
+    private static String key(IFile file) {
+        return file.getFullPath().toString();
+    }
+
+    /**
+     * Look up the summary for a file.  Returns none if there isn't one or the
+     * file's contents changed since it was saved.
+     */
+    public Option<Summary> get(IFile file) throws CoreException, IOException {
+        final long modificationStamp = file.getModificationStamp();
+        final Summary summary;
+        synchronized(this) {
+            summary = summaries.get(key(file));
+        }
+        if(summary == null)
+            return Option.none();
+        if(summary.modificationStamp == modificationStamp)
+            return Option.some(summary);
+        if(!ParseCache.contentHash(file).equals(summary.contentHash))
+            return Option.none();
+        final Summary touched = summary.withModificationStamp(modificationStamp);
+        put(file, touched);
+        return Option.some(touched);
+    }
+
+    public synchronized void put(IFile file, Summary summary) {
+        putSummary(key(file), summary);
+        dirty = true;
+    }
+
+    private void putSummary(String path, Summary summary) {
+        summaries.put(path, summary);
+        dependencyGraph.update(path, summary.uses);
+    }
+
+    public synchronized void remove(IFile file) {
+        final String path = key(file);
+        dependencyGraph.remove(path);
+        if(summaries.remove(path) != null)
+            dirty = true;
+    }
+
+    public synchronized void clear() {
+        summaries.clear();
+        dependencyGraph.clear();
+        dirty = true;
+    }
+
+    public synchronized boolean contains(String fullPath) {
+        return summaries.containsKey(fullPath);
+    }
+
+    public synchronized boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Dependency graph of the files we have summaries for, updated as
+     * summaries are added and removed.
+     */
+    public DependencyGraph dependencyGraph() {
+        return dependencyGraph;
+    }
+
+    /**
+     * Read summaries saved earlier.  If the file is missing, corrupt or from
+     * an older version of the plugin, the result is empty.
+     */
+    public static SourceFileSummaries load(File file, IWorkspaceRoot root) {
+        final SourceFileSummaries result = new SourceFileSummaries();
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if(in.readInt() != MAGIC || in.readInt() != VERSION)
+                return result;
+            for(int count = in.readInt(); count > 0; count--) {
+                final String path = in.readUTF();
+                final long modificationStamp = in.readLong();
+                final String contentHash = in.readUTF();
+                final List<ProblemMarker> parseMarkers = readMarkers(in, root);
+                final List<ProblemMarker> desugarMarkers = readMarkers(in, root);
+                final Set<String> uses = readNames(in);
+                result.putSummary(path, new Summary(modificationStamp, contentHash, parseMarkers, desugarMarkers, uses));
+            }
+        } catch(FileNotFoundException e) {
+            // Nothing saved yet
+        } catch(IOException e) {
+            Activator.log("Failed to read saved build state from " + file, e);
+            result.summaries.clear();
+            result.dependencyGraph.clear();
+        }
+        return result;
+    }
+
+    /**
+     * Write the summaries out if they changed since they were loaded or last
+     * saved.
+     */
+    public synchronized void save(File file) throws IOException {
+        if(!dirty)
+            return;
+        file.getParentFile().mkdirs();
+        final File tmp = new File(file.getPath() + ".tmp");
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(summaries.size());
+            for(Map.Entry<String, Summary> e : summaries.entrySet()) {
+                final Summary summary = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(summary.modificationStamp);
+                out.writeUTF(summary.contentHash);
+                writeMarkers(out, summary.parseMarkers);
+                writeMarkers(out, summary.desugarMarkers);
+                writeNames(out, summary.uses);
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        dirty = false;
+    }
+
+    private static void writeMarkers(DataOutputStream out, List<ProblemMarker> markers) throws IOException {
+        out.writeInt(markers.length());
+        for(ProblemMarker marker : markers) {
+            out.writeUTF(marker.file.getFullPath().toString());
+            out.writeUTF(marker.message.length() > MAX_MESSAGE_LENGTH ? marker.message.substring(0, MAX_MESSAGE_LENGTH) : marker.message);
+            out.writeInt(marker.severity);
+            out.writeInt(marker.lineNumber);
+            out.writeInt(marker.charStart);
+            out.writeInt(marker.charEnd);
+        }
+    }
+
+    private static void writeNames(DataOutputStream out, Set<String> names) throws IOException {
+        out.writeInt(names.size());
+        for(String name : names) {
+            out.writeUTF(name);
+        }
+    }
+
+    private static Set<String> readNames(DataInputStream in) throws IOException {
+        Set<String> names = Set.empty(Ord.stringOrd);
+        for(int count = in.readInt(); count > 0; count--) {
+            names = names.insert(in.readUTF());
+        }
+        return names;
+    }
+
+    private static List<ProblemMarker> readMarkers(DataInputStream in, IWorkspaceRoot root) throws IOException {
+        List<ProblemMarker> markers = List.nil();
+        for(int count = in.readInt(); count > 0; count--) {
+            final IFile file = root.getFile(new org.eclipse.core.runtime.Path(in.readUTF()));
+            final String message = in.readUTF();
+            final int severity = in.readInt();
+            final int lineNumber = in.readInt();
+            final int charStart = in.readInt();
+            final int charEnd = in.readInt();
+            markers = markers.cons(new ProblemMarker(file, message, severity, lineNumber, charStart, charEnd));
+        }
+        return markers.reverse();
+    }
+}
@@ -0,0 +1,199 @@
+package banjo.builder;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+
+import org.eclipse.core.runtime.FileLocator;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Platform;
+import org.eclipse.core.runtime.Status;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+
+import banjo.editor.Activator;
+import banjo.expr.core.CoreExpr;
+import banjo.expr.core.CoreExprFactory;
+import banjo.expr.core.Extend;
+import banjo.expr.core.TestAndExampleGatherer;
+import banjo.expr.util.SourceFileRange;
+import fj.data.List;
+
+/**
+ * Locates and loads the banjo-lang standard library.  The library doesn't
+ * change while eclipse is running, so it is resolved and loaded once and
+ * shared by all Banjo projects, unless the bundle providing it is updated.
+ *
+ * Projects can be loaded on top of the cached library AST rather than
+ * reading the library again with each project.  That's only done once the
+ * first project loaded against the library has been loaded both ways and
+ * found to have the same tests; otherwise every project is loaded together
+ * with the library as before.
+ */
+public class StandardLibrary {
+    public static final String BUNDLE_ID = "banjo.banjo-lang";
+
+    private static List<Path> searchPath = null;
+    private static CoreExpr ast = null;
+    private static String fingerprint = null;
+
+    /**
+     * Whether loading a project on top of the library AST was found to give
+     * the same tests as loading them together; null until it's been checked
+     * for the current library.
+     */
+    private static Boolean layeringChecked = null;
+
+    /**
+     * Incremented whenever the library is invalidated, so caches holding
+     * ASTs that include the library can tell they are out of date.
+     */
+    private static long generation = 0;
+
+    private static final BundleListener bundleListener = new BundleListener() {
+        @Override
+        public void bundleChanged(BundleEvent event) {
+            if(!BUNDLE_ID.equals(event.getBundle().getSymbolicName()))
+                return;
+            switch(event.getType()) {
+            case BundleEvent.INSTALLED:
+            case BundleEvent.UPDATED:
+            case BundleEvent.UNRESOLVED:
+            case BundleEvent.UNINSTALLED:
+                invalidate();
+                break;
+            default:
+                break;
+            }
+        }
+    };
+
+    public static void start(BundleContext context) {
+        context.addBundleListener(bundleListener);
+    }
+
+    public static void stop(BundleContext context) {
+        context.removeBundleListener(bundleListener);
+        invalidate();
+    }
+
+    public static synchronized void invalidate() {
+        searchPath = null;
+        ast = null;
+        fingerprint = null;
+        layeringChecked = null;
+        generation++;
+    }
+
+    public static synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Identifies the installed library across sessions, so results saved by
+     * an earlier session can be checked against it; empty if the banjo-lang
+     * bundle isn't available.
+     */
+    public static synchronized String fingerprint() {
+        if(fingerprint == null) {
+            Bundle langBundle = Platform.getBundle(BUNDLE_ID);
+            fingerprint = langBundle == null ? "" : langBundle.getVersion() + "@" + langBundle.getLastModified();
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Get the directories to search for the standard library source; empty
+     * if the banjo-lang bundle isn't available.
+     */
+    public static synchronized List<Path> searchPath() {
+        if(searchPath == null)
+            searchPath = resolveSearchPath();
+        return searchPath;
+    }
+
+    /**
+     * Get the AST for the standard library by itself.
+     */
+    public static synchronized CoreExpr ast() {
+        if(ast == null)
+            ast = CoreExprFactory.INSTANCE.loadFromDirectories(searchPath());
+        return ast;
+    }
+
+    /**
+     * Load a project along with the library.
+     */
+    public static CoreExpr projectAst(Path root) {
+        final List<Path> library = searchPath();
+        if(library.isEmpty())
+            return CoreExprFactory.INSTANCE.loadFromDirectories(List.single(root));
+        final Boolean layered;
+        synchronized(StandardLibrary.class) {
+            layered = layeringChecked;
+        }
+        if(layered == Boolean.TRUE)
+            return layer(ast(), root);
+        final CoreExpr together = CoreExprFactory.INSTANCE.loadFromDirectories(library.snoc(root));
+        if(layered == null)
+            checkLayering(together, layer(ast(), root), root);
+        return together;
+    }
+
+    /**
+     * Load just the sources under a project root and put them on top of the
+     * library AST, the way loadFromDirectories puts each directory on top of
+     * the ones before it.
+     */
+    static CoreExpr layer(CoreExpr libraryAst, Path root) {
+        return new Extend(libraryAst, CoreExprFactory.INSTANCE.loadFromDirectories(List.single(root)));
+    }
+
+    /**
+     * Compare the tests found in a project loaded together with the library
+     * and on top of it, and only load projects on top of the library from
+     * then on if they're the same.
+     */
+    private static void checkLayering(CoreExpr together, CoreExpr layered, Path root) {
+        final ArrayList<String> expected = testsIn(together);
+        final ArrayList<String> actual = testsIn(layered);
+        final boolean same = expected.equals(actual);
+        synchronized(StandardLibrary.class) {
+            layeringChecked = same;
+        }
+        Activator.log(new Status(same ? IStatus.INFO : IStatus.WARNING, Activator.PLUGIN_ID, same ?
+            "Loading " + root + " on top of the standard library found the same " + expected.size() + " test(s); projects will be loaded that way" :
+            "Loading " + root + " on top of the standard library found " + actual.size() + " test(s) rather than " + expected.size() + "; projects will be loaded with the library"));
+    }
+
+    /**
+     * Where each test and example in an AST is, with its key, sorted
+     */
+    private static ArrayList<String> testsIn(CoreExpr ast) {
+        final ArrayList<String> tests = new ArrayList<>();
+        for(CoreExpr test : TestAndExampleGatherer.findTests(ast).toList().append(TestAndExampleGatherer.findExamples(ast).toList())) {
+            final CoreExpr noscope = TestAndExampleGatherer.stripScope(test);
+            for(SourceFileRange r : SourceFileRange.compactSet(noscope.getSourceFileRanges()))
+                tests.add(r.getSourceFile() + "\t" + TestWorker.testKey(r, noscope));
+        }
+        tests.sort(null);
+        return tests;
+    }
+
+    private static List<Path> resolveSearchPath() {
+        try {
+            Bundle langBundle = Platform.getBundle(BUNDLE_ID);
+            if(langBundle == null)
+                return List.nil();
+            return List.single(Paths.get(FileLocator.resolve(langBundle.getResource("/")).toURI()));
+        } catch(URISyntaxException e) {
+            return List.nil();
+        } catch(IOException e) {
+            return List.nil();
+        }
+    }
+}
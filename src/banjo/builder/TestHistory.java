@@ -0,0 +1,136 @@
+package banjo.builder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import banjo.editor.Activator;
+import fj.data.Set;
+
+/**
+ * How long each test took to run last time and whether it failed, saved in
+ * the plugin state area.  Used to run the tests most likely to fail first,
+ * and then the slowest ones, so that failures show up quickly and the
+ * parallel test run doesn't end with one long test running on its own.
+ */
+public class TestHistory {
+    private static final int MAGIC = 0x42616e74; // "Bant"
+    private static final int VERSION = 1;
+
+    public static class Entry {
+        public final long durationNanos;
+        public final boolean failed;
+
+        public Entry(long durationNanos, boolean failed) {
+            this.durationNanos = durationNanos;
+            this.failed = failed;
+        }
+    }
+
+    /**
+     * For each file, map from test key to what happened when it last ran
+     */
+    private final HashMap<String, HashMap<String, Entry>> history = new HashMap<>();
+    private boolean dirty = false;
+
+    public synchronized Entry get(String fullPath, String testKey) {
+        final HashMap<String, Entry> fileHistory = history.get(fullPath);
+        final Entry entry = fileHistory == null ? null : fileHistory.get(testKey);
+        return entry == null ? UNKNOWN : entry;
+    }
+
+    public synchronized void put(String fullPath, String testKey, Entry entry) {
+        history.computeIfAbsent(fullPath, k -> new HashMap<>()).put(testKey, entry);
+        dirty = true;
+    }
+
+    /**
+     * Forget tests in a file other than the given ones, which are the tests
+     * currently in the file.
+     */
+    public synchronized void retain(String fullPath, Set<String> testKeys) {
+        final HashMap<String, Entry> fileHistory = history.get(fullPath);
+        if(fileHistory != null && fileHistory.keySet().removeIf(k -> !testKeys.member(k)))
+            dirty = true;
+    }
+
+    public synchronized void clear() {
+        history.clear();
+        dirty = true;
+    }
+
+    /**
+     * Order tests so that the ones that failed last time come first, and
+     * then the slowest ones.
+     */
+    public static final Comparator<Entry> SCHEDULING_ORDER = (a, b) -> {
+        if(a.failed != b.failed)
+            return a.failed ? -1 : 1;
+        return Long.compare(b.durationNanos, a.durationNanos);
+    };
+
+    /**
+     * Entry used for tests we haven't seen before, which are assumed to be
+     * slow
+     */
+    public static final Entry UNKNOWN = new Entry(Long.MAX_VALUE, false);
+
+    public static TestHistory load(File file) {
+        final TestHistory result = new TestHistory();
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if(in.readInt() != MAGIC || in.readInt() != VERSION)
+                return result;
+            for(int files = in.readInt(); files > 0; files--) {
+                final String fullPath = in.readUTF();
+                final HashMap<String, Entry> fileHistory = new HashMap<>();
+                for(int tests = in.readInt(); tests > 0; tests--) {
+                    final String testKey = in.readUTF();
+                    final long durationNanos = in.readLong();
+                    final boolean failed = in.readBoolean();
+                    fileHistory.put(testKey, new Entry(durationNanos, failed));
+                }
+                result.history.put(fullPath, fileHistory);
+            }
+        } catch(FileNotFoundException e) {
+            // Nothing saved yet
+        } catch(IOException e) {
+            Activator.log("Failed to read saved test history from " + file, e);
+            result.history.clear();
+        }
+        return result;
+    }
+
+    public synchronized void save(File file) throws IOException {
+        if(!dirty)
+            return;
+        file.getParentFile().mkdirs();
+        final File tmp = new File(file.getPath() + ".tmp");
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(history.size());
+            for(Map.Entry<String, HashMap<String, Entry>> f : history.entrySet()) {
+                out.writeUTF(f.getKey());
+                out.writeInt(f.getValue().size());
+                for(Map.Entry<String, Entry> t : f.getValue().entrySet()) {
+                    out.writeUTF(t.getKey());
+                    out.writeLong(t.getValue().durationNanos);
+                    out.writeBoolean(t.getValue().failed);
+                }
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        dirty = false;
+    }
+}
@@ -0,0 +1,72 @@
+package banjo.builder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.core.resources.IFile;
+
+import banjo.expr.core.CoreExpr;
+import banjo.expr.core.TestAndExampleGatherer;
+import banjo.expr.util.SourceFileRange;
+import fj.data.Set;
+
+/**
+ * The tests and examples in a project AST, grouped by the workspace file
+ * they are in.
+ *
+ * Finding them means walking the whole AST, so this is done once per AST
+ * and kept with it in ProjectAstCache.  A test run then only looks at the
+ * tests in files that need them run; the other files are passed over
+ * without touching their tests.
+ */
+public class TestIndex {
+    /**
+     * A test or example, and where it is
+     */
+    public static class Test {
+        public final CoreExpr test;
+        public final CoreExpr noscope;
+        public final SourceFileRange range;
+        public final IFile file;
+
+        Test(CoreExpr test, CoreExpr noscope, SourceFileRange range, IFile file) {
+            this.test = test;
+            this.noscope = noscope;
+            this.range = range;
+            this.file = file;
+        }
+    }
+
+    /**
+     * Tests by workspace path of their file, in the order they were found
+     */
+    private final LinkedHashMap<String, ArrayList<Test>> byFile = new LinkedHashMap<>();
+
+    /**
+     * Find the tests and examples in a project AST.  Ones that aren't in a
+     * workspace file are left out, since there's nowhere to report them.
+     */
+    public static TestIndex forProjectAst(CoreExpr ast) {
+        final TestIndex index = new TestIndex();
+        for(CoreExpr test : TestAndExampleGatherer.findTests(ast).toList().append(TestAndExampleGatherer.findExamples(ast).toList())) {
+            final CoreExpr noscope = TestAndExampleGatherer.stripScope(test);
+            final Set<SourceFileRange> ranges =
+                SourceFileRange.compactSet(noscope.getSourceFileRanges()).filter(r -> r.getSourceFile() instanceof EclipseWorkspacePath);
+            if(ranges.isEmpty())
+                continue;
+            final SourceFileRange r = ranges.iterator().next();
+            final IFile file = ((EclipseWorkspacePath) r.getSourceFile()).getFile();
+            index.byFile.computeIfAbsent(file.getFullPath().toString(), k -> new ArrayList<>()).add(new Test(test, noscope, r, file));
+        }
+        return index;
+    }
+
+    /**
+     * The tests in each file, keyed by the file's workspace path
+     */
+    public Map<String, ArrayList<Test>> byFile() {
+        return Collections.unmodifiableMap(byFile);
+    }
+}
@@ -0,0 +1,72 @@
+package banjo.builder;
+
+import org.eclipse.core.resources.IFile;
+
+import banjo.expr.core.CoreExpr;
+import banjo.expr.util.SourceFileRange;
+import fj.data.Option;
+
+/**
+ * Result of running one test or example.
+ */
+public class TestOutcome {
+    public final CoreExpr test;
+    public final SourceFileRange range;
+    public final IFile file;
+    public final String testKey;
+
+    /**
+     * Explanation of why the test failed; none if it passed.
+     */
+    public final Option<String> failure;
+
+    /**
+     * How long the test took to evaluate
+     */
+    public final long durationNanos;
+
+    /**
+     * Detailed explanation of the failure to calculate in the background
+     */
+    public final Option<FailureExplainer.Request> explanation;
+
+    /**
+     * Whether the test ran to the end.  A test that timed out or was
+     * cancelled has no result, and must not be recorded as passing.
+     */
+    public final boolean finished;
+
+    /**
+     * Warning to show for a test that didn't finish, e.g. because it timed
+     * out; none if it finished or was just cancelled.
+     */
+    public final Option<String> warning;
+
+    public TestOutcome(CoreExpr test, SourceFileRange range, IFile file, String testKey, Option<String> failure, long durationNanos, Option<FailureExplainer.Request> explanation) {
+        this(test, range, file, testKey, failure, durationNanos, explanation, true, Option.none());
+    }
+
+    private TestOutcome(CoreExpr test, SourceFileRange range, IFile file, String testKey, Option<String> failure, long durationNanos,
+        Option<FailureExplainer.Request> explanation, boolean finished, Option<String> warning) {
+        this.test = test;
+        this.range = range;
+        this.file = file;
+        this.testKey = testKey;
+        this.failure = failure;
+        this.durationNanos = durationNanos;
+        this.explanation = explanation;
+        this.finished = finished;
+        this.warning = warning;
+    }
+
+    /**
+     * Outcome of a test that didn't run to the end
+     */
+    public static TestOutcome unfinished(CoreExpr test, SourceFileRange range, IFile file, String testKey, Option<String> warning, long durationNanos) {
+        return new TestOutcome(test, range, file, testKey, Option.none(), durationNanos, Option.none(), false, warning);
+    }
+
+    public String getFullPath() {
+        return file.getFullPath().toString();
+    }
+}
@@ -0,0 +1,173 @@
+package banjo.builder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import banjo.editor.Activator;
+import fj.data.Option;
+
+/**
+ * Outcome of the last run of each test and example in a project, grouped by
+ * the file the test is in.  Used to skip tests that can't have been
+ * affected by a change.
+ *
+ * The results are saved in the plugin state area along with the standard
+ * library they were calculated against, so that they are still usable
+ * after eclipse restarts.
+ */
+public class TestResults {
+    private static final int MAGIC = 0x42616e72; // "Banr"
+    private static final int VERSION = 1;
+    private static final int MAX_MESSAGE_LENGTH = 8192;
+
+    /**
+     * For each file, map from test key to failure message; none if the test
+     * passed.
+     */
+    private final HashMap<String, HashMap<String, Option<String>>> results = new HashMap<>();
+
+    /**
+     * Files for which every test has a result, so there's no need to look
+     * for tests to run in them until they change
+     */
+    private final HashSet<String> settled = new HashSet<>();
+
+    /**
+     * Standard library the results were calculated against
+     */
+    private String libraryFingerprint = "";
+    private boolean dirty = false;
+
+    public synchronized boolean contains(String fullPath, String testKey) {
+        final HashMap<String, Option<String>> fileResults = results.get(fullPath);
+        return fileResults != null && fileResults.containsKey(testKey);
+    }
+
+    public synchronized void put(String fullPath, String testKey, Option<String> failure) {
+        results.computeIfAbsent(fullPath, k -> new HashMap<>()).put(testKey, failure);
+        dirty = true;
+    }
+
+    /**
+     * Forget the result of one test, e.g. because it is about to run again.
+     */
+    public synchronized void remove(String fullPath, String testKey) {
+        final HashMap<String, Option<String>> fileResults = results.get(fullPath);
+        if(fileResults != null)
+            fileResults.remove(testKey);
+        settled.remove(fullPath);
+        dirty = true;
+    }
+
+    /**
+     * Forget the results for a file; its tests will all be run again.
+     */
+    public synchronized void forgetFile(String fullPath) {
+        results.remove(fullPath);
+        settled.remove(fullPath);
+        dirty = true;
+    }
+
+    /**
+     * Record that every test in the given files has a result
+     */
+    public synchronized void settle(Iterable<String> fullPaths) {
+        for(String fullPath : fullPaths)
+            settled.add(fullPath);
+        dirty = true;
+    }
+
+    public synchronized boolean isSettled(String fullPath) {
+        return settled.contains(fullPath);
+    }
+
+    public synchronized String getLibraryFingerprint() {
+        return libraryFingerprint;
+    }
+
+    /**
+     * Drop all the results, which were calculated against a different
+     * library or are otherwise out of date.
+     */
+    public synchronized void clear(String newLibraryFingerprint) {
+        results.clear();
+        settled.clear();
+        libraryFingerprint = newLibraryFingerprint;
+        dirty = true;
+    }
+
+    public synchronized void clear() {
+        clear("");
+    }
+
+    public static TestResults load(File file) {
+        final TestResults result = new TestResults();
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if(in.readInt() != MAGIC || in.readInt() != VERSION)
+                return result;
+            result.libraryFingerprint = in.readUTF();
+            for(int files = in.readInt(); files > 0; files--) {
+                final String fullPath = in.readUTF();
+                if(in.readBoolean())
+                    result.settled.add(fullPath);
+                final HashMap<String, Option<String>> fileResults = new HashMap<>();
+                for(int tests = in.readInt(); tests > 0; tests--) {
+                    final String testKey = in.readUTF();
+                    final Option<String> failure = in.readBoolean() ? Option.some(in.readUTF()) : Option.none();
+                    fileResults.put(testKey, failure);
+                }
+                result.results.put(fullPath, fileResults);
+            }
+        } catch(FileNotFoundException e) {
+            // Nothing saved yet
+        } catch(IOException e) {
+            Activator.log("Failed to read saved test results from " + file, e);
+            result.clear();
+            result.dirty = false;
+        }
+        return result;
+    }
+
+    public synchronized void save(File file) throws IOException {
+        if(!dirty)
+            return;
+        final HashSet<String> paths = new HashSet<>(results.keySet());
+        paths.addAll(settled);
+        file.getParentFile().mkdirs();
+        final File tmp = new File(file.getPath() + ".tmp");
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(libraryFingerprint);
+            out.writeInt(paths.size());
+            for(String fullPath : paths) {
+                out.writeUTF(fullPath);
+                out.writeBoolean(settled.contains(fullPath));
+                final HashMap<String, Option<String>> fileResults = results.getOrDefault(fullPath, new HashMap<>());
+                out.writeInt(fileResults.size());
+                for(Map.Entry<String, Option<String>> t : fileResults.entrySet()) {
+                    out.writeUTF(t.getKey());
+                    out.writeBoolean(t.getValue().isSome());
+                    if(t.getValue().isSome()) {
+                        final String message = t.getValue().some();
+                        out.writeUTF(message.length() > MAX_MESSAGE_LENGTH ? message.substring(0, MAX_MESSAGE_LENGTH) : message);
+                    }
+                }
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        dirty = false;
+    }
+}
@@ -0,0 +1,200 @@
+package banjo.builder;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+
+import banjo.eval.environment.Environment;
+import banjo.expr.core.CoreExpr;
+import banjo.expr.core.CoreExprFactory;
+import banjo.expr.core.TestAndExampleGatherer;
+import banjo.expr.util.SourceFileRange;
+import fj.P;
+import fj.P2;
+import fj.data.List;
+import fj.data.Option;
+import fj.data.Set;
+
+/**
+ * Main class of a child JVM that runs tests for the builder, so that tests
+ * using lots of memory or never finishing don't affect eclipse itself.
+ *
+ * This must not use any eclipse classes; only banjo-lang and functionaljava
+ * are on the worker's classpath, along with this plugin's own classes.
+ *
+ * The builder talks to the worker over its standard input and output, one
+ * tab separated command per line:
+ *
+ * <pre>
+ * project VERSION ROOT PATH...    load the project at ROOT, searching PATHs
+ *                                 (the library and the root); replies "loaded N"
+ * test FILE KEY DEADLINE CPU MEM  run a test; replies "result STATUS NANOS MESSAGE"
+ * </pre>
+ *
+ * STATUS is "pass", "false", "timeout", "budget" (went over its CPU or memory
+ * budget), "error" or "missing".  After "timeout" or "budget" the test may
+ * still be running, so the builder kills the worker.  A command that
+ * fails replies "error MESSAGE".  The worker exits when its input is closed.
+ */
+public class TestWorker {
+    private final EvaluationScheduler evaluator;
+    private String version = null;
+    private Environment env = null;
+
+    /**
+     * Tests in the current project, keyed by file and test key
+     */
+    private final HashMap<String, CoreExpr> tests = new HashMap<>();
+
+    public TestWorker(EvaluationScheduler evaluator) {
+        this.evaluator = evaluator;
+    }
+
+    /**
+     * Key identifying a test for as long as its source doesn't change; the
+     * same in the builder and the worker.
+     */
+    public static String testKey(SourceFileRange r, CoreExpr noscope) {
+        return r.getFileRange().getStartOffset() + ":" + r.getFileRange().getEndOffset() + ":" + Integer.toHexString(noscope.toSource().hashCode());
+    }
+
+    /**
+     * Identify a source file the same way in the builder and the worker
+     */
+    public static String fileKey(Path path) {
+        return path.toAbsolutePath().normalize().toString();
+    }
+
+    public static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    public static String unescape(String s) {
+        final StringBuilder sb = new StringBuilder(s.length());
+        for(int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            if(ch == '\\' && i + 1 < s.length()) {
+                ch = s.charAt(++i);
+                switch(ch) {
+                case 't': ch = '\t'; break;
+                case 'n': ch = '\n'; break;
+                case 'r': ch = '\r'; break;
+                default: break;
+                }
+            }
+            sb.append(ch);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Load a project, unless the version we have loaded is the same.
+     * Returns the number of tests found.
+     */
+    int loadProject(String newVersion, Path root, List<Path> searchPath) {
+        if(newVersion.equals(version))
+            return tests.size();
+        version = null;
+        tests.clear();
+        final CoreExpr ast = CoreExprFactory.INSTANCE.loadFromDirectories(searchPath);
+        final String rootKey = fileKey(root) + File.separator;
+        for(CoreExpr test : TestAndExampleGatherer.findTests(ast).toList().append(TestAndExampleGatherer.findExamples(ast).toList())) {
+            final CoreExpr noscope = TestAndExampleGatherer.stripScope(test);
+            final Set<SourceFileRange> ranges = SourceFileRange.compactSet(noscope.getSourceFileRanges())
+                .filter(r -> fileKey(r.getSourceFile()).startsWith(rootKey));
+            if(ranges.isEmpty())
+                continue;
+            final SourceFileRange r = ranges.iterator().next();
+            tests.put(fileKey(r.getSourceFile()) + "\t" + testKey(r, noscope), test);
+        }
+        env = Environment.forProjectAst(ast);
+        version = newVersion;
+        return tests.size();
+    }
+
+    /**
+     * Run a test, returning its status and a message
+     */
+    P2<String, String> runTest(String file, String testKey, long deadlineMillis, EvaluationScheduler.Budget budget) {
+        final CoreExpr test = tests.get(file + "\t" + testKey);
+        if(test == null || env == null)
+            return P.p("missing", "");
+        final Environment testEnv = env;
+        try {
+            final Option<Boolean> result = evaluator.call(() -> testEnv.eval(test).isTrue(List.nil()), deadlineMillis, budget, () -> false);
+            if(result.isNone())
+                return P.p("timeout", "");
+            return P.p(result.some() ? "pass" : "false", "");
+        } catch(EvaluationScheduler.BudgetExceededException e) {
+            return P.p("budget", e.getMessage());
+        } catch(Error e) {
+            return P.p("error", EvaluationScheduler.failureMessage(e));
+        }
+    }
+
+    String handle(String line) {
+        final String[] args = line.split("\t", -1);
+        switch(args[0]) {
+        case "project": {
+            List<Path> searchPath = List.nil();
+            for(int i = args.length - 1; i >= 3; i--)
+                searchPath = searchPath.cons(Paths.get(unescape(args[i])));
+            return "loaded\t" + loadProject(args[1], Paths.get(unescape(args[2])), searchPath);
+        }
+        case "test": {
+            final long start = System.nanoTime();
+            final P2<String, String> result = runTest(unescape(args[1]), unescape(args[2]), Long.parseLong(args[3]),
+                new EvaluationScheduler.Budget(Long.parseLong(args[4]), Long.parseLong(args[5])));
+            return "result\t" + result._1() + "\t" + (System.nanoTime() - start) + "\t" + escape(result._2());
+        }
+        default:
+            return "error\tUnknown command " + escape(args[0]);
+        }
+    }
+
+    /**
+     * Arguments are the grace period for stuck evaluations in milliseconds,
+     * followed by the standard library directories to load up front.
+     */
+    public static void main(String[] args) throws IOException {
+        // Only the protocol goes to the real standard output
+        final BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8));
+        System.setOut(new PrintStream(new FileOutputStream(FileDescriptor.err), true));
+        final BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+
+        final TestWorker worker = new TestWorker(new EvaluationScheduler("Banjo test evaluation", 1, Long.parseLong(args[0])));
+
+        // Load the standard library once so the classes and JIT are warmed
+        // up before the first project arrives
+        List<Path> library = List.nil();
+        for(int i = args.length - 1; i >= 1; i--)
+            library = library.cons(Paths.get(args[i]));
+        if(library.isNotEmpty())
+            CoreExprFactory.INSTANCE.loadFromDirectories(library);
+        out.write("ready\n");
+        out.flush();
+
+        for(String line = in.readLine(); line != null; line = in.readLine()) {
+            String reply;
+            try {
+                reply = worker.handle(line);
+            } catch(RuntimeException | Error e) {
+                reply = "error\t" + escape(String.valueOf(e));
+            }
+            out.write(reply);
+            out.write('\n');
+            out.flush();
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,317 @@
+package banjo.builder;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import org.eclipse.core.runtime.FileLocator;
+import org.eclipse.core.runtime.Platform;
+import org.osgi.framework.Bundle;
+
+import banjo.editor.Activator;
+import banjo.expr.core.CoreExpr;
+import fj.P;
+import fj.P2;
+import fj.data.List;
+import fj.data.Option;
+
+/**
+ * Pool of child JVMs running {@link TestWorker}, used to run tests outside
+ * of eclipse.  A test that eats all the memory or can't be stopped only
+ * takes down its worker, which is started again for the next test.
+ *
+ * Workers keep the project they loaded last, so as long as the project AST
+ * doesn't change they only have to be sent the tests to run.
+ *
+ * A worker whose test timed out or went over budget is killed and started
+ * again for the next test, since the test may still be running inside it
+ * and there's no other reliable way to stop it.
+ *
+ * A test run that is cancelled interrupts the threads waiting for the
+ * workers.  The workers are left alone, since that happens on every save
+ * while tests are running; the reply they were working on is read and
+ * thrown away before they are given their next request.
+ */
+public class TestWorkerPool {
+    /**
+     * Bundles whose classes the workers need
+     */
+    private static final String[] WORKER_BUNDLES = {
+        Activator.PLUGIN_ID, StandardLibrary.BUNDLE_ID, "org.functionaljava", "org.functionaljava.java8"
+    };
+
+    /**
+     * Extra time to allow a worker to answer, on top of the evaluation
+     * deadline, before deciding it's stuck
+     */
+    private static final long RESPONSE_MARGIN_MILLIS = 10000;
+
+    /**
+     * How long to allow for loading a project
+     */
+    private static final long LOAD_TIMEOUT_MILLIS = 120000;
+
+    private final long gracePeriodMillis;
+    private final String maxHeap;
+    private final ArrayBlockingQueue<Worker> idle;
+
+    /**
+     * Every worker, idle or busy
+     */
+    private final ArrayList<Worker> all = new ArrayList<>();
+    private volatile boolean shutDown = false;
+
+    /**
+     * Version number for each project AST given to the workers, so they can
+     * tell when they need to load the project again
+     */
+    private final HashMap<String, P2<CoreExpr, Long>> versions = new HashMap<>();
+    private long nextVersion = 0;
+
+    /**
+     * A project as the workers see it
+     */
+    public static class Project {
+        final String version;
+        final Path root;
+        final List<Path> searchPath;
+
+        Project(String version, Path root, List<Path> searchPath) {
+            this.version = version;
+            this.root = root;
+            this.searchPath = searchPath;
+        }
+    }
+
+    /**
+     * What a worker said about a test
+     */
+    public static class Result {
+        /**
+         * "pass", "false", "timeout", "budget", "error" or "missing"
+         */
+        public final String status;
+        public final long durationNanos;
+        public final String message;
+
+        public Result(String status, long durationNanos, String message) {
+            this.status = status;
+            this.durationNanos = durationNanos;
+            this.message = message;
+        }
+    }
+
+    private class Worker {
+        Process process = null;
+        BufferedWriter out;
+        BufferedReader in;
+        String projectVersion = null;
+
+        /**
+         * Whether the worker owes us a reply to a request whose caller was
+         * interrupted while waiting, and when it should arrive by
+         */
+        boolean awaitingReply = false;
+        long replyDeadline = 0;
+
+        void start() throws IOException, InterruptedException {
+            if(shutDown)
+                throw new IOException("Test workers have been shut down");
+            final ArrayList<String> command = new ArrayList<>();
+            command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+            command.add("-Xmx" + maxHeap);
+            command.add("-cp");
+            command.add(classPath());
+            command.add(TestWorker.class.getName());
+            command.add(Long.toString(gracePeriodMillis));
+            for(Path p : StandardLibrary.searchPath())
+                command.add(p.toString());
+            final ProcessBuilder pb = new ProcessBuilder(command);
+            pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+            final Process started = pb.start();
+            synchronized(this) {
+                process = started;
+                out = new BufferedWriter(new OutputStreamWriter(started.getOutputStream(), StandardCharsets.UTF_8));
+                in = new BufferedReader(new InputStreamReader(started.getInputStream(), StandardCharsets.UTF_8));
+                projectVersion = null;
+            }
+            awaitingReply = false;
+            if(shutDown) {
+                // Shut down while we were starting it
+                kill();
+                throw new IOException("Test workers have been shut down");
+            }
+            final String ready = awaitReply(LOAD_TIMEOUT_MILLIS);
+            if(!"ready".equals(ready))
+                throw new IOException("Test worker failed to start: " + ready);
+        }
+
+        String request(String line, long timeoutMillis) throws IOException, InterruptedException {
+            final Process p;
+            synchronized(this) {
+                p = process;
+            }
+            if(p == null || !p.isAlive())
+                start();
+            else if(awaitingReply)
+                awaitReply(Math.max(0, replyDeadline - System.currentTimeMillis()));
+            out.write(line);
+            out.write('\n');
+            out.flush();
+            return awaitReply(timeoutMillis);
+        }
+
+        /**
+         * Wait for the reply to the last request.  If we're interrupted, the
+         * reply is still owed and the next request reads it first.
+         */
+        private String awaitReply(long timeoutMillis) throws IOException, InterruptedException {
+            awaitingReply = true;
+            replyDeadline = System.currentTimeMillis() + timeoutMillis;
+            final String reply = readLine(timeoutMillis);
+            awaitingReply = false;
+            return reply;
+        }
+
+        private String readLine(long timeoutMillis) throws IOException, InterruptedException {
+            final Process p;
+            synchronized(this) {
+                p = process;
+            }
+            if(p == null)
+                throw new IOException("Test worker was stopped");
+            final long deadline = System.currentTimeMillis() + timeoutMillis;
+            while(!in.ready()) {
+                if(!p.isAlive())
+                    throw new IOException("Test worker exited with status " + p.exitValue());
+                if(System.currentTimeMillis() > deadline)
+                    throw new IOException("Test worker stopped responding");
+                Thread.sleep(5);
+            }
+            final String line = in.readLine();
+            if(line == null)
+                throw new IOException("Test worker closed its output");
+            return line;
+        }
+
+        synchronized void kill() {
+            if(process != null)
+                process.destroyForcibly();
+            process = null;
+            projectVersion = null;
+        }
+    }
+
+    public TestWorkerPool(int size, long gracePeriodMillis, String maxHeap) {
+        this.gracePeriodMillis = gracePeriodMillis;
+        this.maxHeap = maxHeap;
+        this.idle = new ArrayBlockingQueue<>(size);
+        for(int i = 0; i < size; i++)
+            all.add(new Worker());
+        idle.addAll(all);
+    }
+
+    /**
+     * Describe a project for the workers.  The version changes whenever a
+     * different AST is passed for the same project.
+     */
+    public synchronized Project project(String key, CoreExpr ast, Path root, List<Path> searchPath) {
+        P2<CoreExpr, Long> version = versions.get(key);
+        if(version == null || version._1() != ast) {
+            version = P.p(ast, nextVersion++);
+            versions.put(key, version);
+        }
+        return new Project(Long.toString(version._2()), root, searchPath);
+    }
+
+    /**
+     * Run a test on the next free worker, starting or restarting the worker
+     * if necessary.
+     *
+     * @throws InterruptedException
+     *             If the calling thread was interrupted; the worker is kept
+     *             and its reply discarded later
+     */
+    public Result run(Project project, String file, String testKey, long deadlineMillis, EvaluationScheduler.Budget budget) throws InterruptedException {
+        final Worker worker = idle.take();
+        try {
+            if(!project.version.equals(worker.projectVersion)) {
+                final StringBuilder load = new StringBuilder("project\t").append(project.version)
+                    .append('\t').append(TestWorker.escape(project.root.toString()));
+                for(Path p : project.searchPath)
+                    load.append('\t').append(TestWorker.escape(p.toString()));
+                final String loaded = worker.request(load.toString(), LOAD_TIMEOUT_MILLIS);
+                if(!loaded.startsWith("loaded\t"))
+                    return error(loaded);
+                worker.projectVersion = project.version;
+            }
+            final String reply = worker.request("test\t" + TestWorker.escape(file) + "\t" + TestWorker.escape(testKey) + "\t" +
+                deadlineMillis + "\t" + budget.cpuNanos + "\t" + budget.allocatedBytes,
+                deadlineMillis + gracePeriodMillis + RESPONSE_MARGIN_MILLIS);
+            final String[] parts = reply.split("\t", -1);
+            if(parts.length != 4 || !parts[0].equals("result"))
+                return error(reply);
+            final Result result = new Result(parts[1], Long.parseLong(parts[2]), TestWorker.unescape(parts[3]));
+            if(result.status.equals("timeout") || result.status.equals("budget")) {
+                // The test is probably still running in there, holding the
+                // worker's only evaluation thread; start afresh
+                worker.kill();
+            }
+            return result;
+        } catch(IOException e) {
+            // Most likely the test itself brought the worker down; start a
+            // fresh one for the next test
+            worker.kill();
+            if(!shutDown)
+                Activator.log("Restarting Banjo test worker", e);
+            return new Result("error", 0, "Test worker failed: " + e.getMessage());
+        } finally {
+            idle.add(worker);
+        }
+    }
+
+    private static Result error(String reply) {
+        return new Result("error", 0, reply.startsWith("error\t") ? TestWorker.unescape(reply.substring(6)) : reply);
+    }
+
+    /**
+     * Kill all the workers, including any that are in the middle of a test
+     */
+    public void shutdown() {
+        shutDown = true;
+        for(Worker worker : all)
+            worker.kill();
+    }
+
+    /**
+     * Build the class path for the workers from the locations of the bundles
+     * they need.  Bundles loaded from a workspace project have their classes
+     * in the project's bin folder.
+     */
+    static String classPath() throws IOException {
+        final StringBuilder cp = new StringBuilder();
+        for(String id : WORKER_BUNDLES) {
+            final Bundle bundle = Platform.getBundle(id);
+            if(bundle == null)
+                continue;
+            final Option<File> location = Option.fromNull(FileLocator.getBundleFile(bundle));
+            if(location.isNone())
+                continue;
+            final File bin = new File(location.some(), "bin");
+            for(File f : bin.isDirectory() ? List.list(bin, location.some()) : List.single(location.some())) {
+                if(cp.length() > 0)
+                    cp.append(File.pathSeparator);
+                cp.append(f.getPath());
+            }
+        }
+        return cp.toString();
+    }
+}
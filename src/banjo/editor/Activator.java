@@ -9,6 +9,9 @@ import org.eclipse.jface.resource.ImageDescriptor;
 import org.eclipse.ui.plugin.AbstractUIPlugin;
 import org.osgi.framework.BundleContext;
 
+import banjo.builder.BanjoBuilder;
+import banjo.builder.StandardLibrary;
+
 /**
  * The activator class controls the plug-in life cycle
  */
@@ -33,6 +36,7 @@ public class Activator extends AbstractUIPlugin {
 	public void start(BundleContext context) throws Exception {
 		super.start(context);
 		plugin = this;
+		StandardLibrary.start(context);
 	}
 
 	/*
@@ -40,6 +44,8 @@ public class Activator extends AbstractUIPlugin {
 	 * @see org.eclipse.ui.plugin.AbstractUIPlugin#stop(org.osgi.framework.BundleContext)
 	 */
 	public void stop(BundleContext context) throws Exception {
+		BanjoBuilder.shutdownTestWorkers();
+		StandardLibrary.stop(context);
 		plugin = null;
 		super.stop(context);
 	}